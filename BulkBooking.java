@@ -0,0 +1,30 @@
+// Items and per-item outcomes of RideMatchingEngine.bookAll().
+final class BulkBooking {
+    enum Outcome {
+        BOOKED,
+        // this item was bookable, but another item was not, so nothing was booked
+        ABORTED,
+        UNKNOWN_TRIP,
+        STARTED,
+        NOT_ENOUGH_SEATS,
+        // no trip id, no user, or fewer than one seat
+        INVALID,
+        // the store could not be locked or written
+        FAILED
+    }
+
+    static final class Request {
+        final String tripId;
+        final User user;
+        final int seats;
+
+        Request(String tripId, User user, int seats) {
+            this.tripId = tripId;
+            this.user = user;
+            this.seats = seats;
+        }
+    }
+
+    private BulkBooking() {
+    }
+}
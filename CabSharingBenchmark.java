@@ -0,0 +1,551 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Micro-benchmarks for the paths we hit at peak: route search, search near a pickup,
+// contended booking, ride-pool batches, a hot route next to quiet ones, surge pricing
+// counters, opening the user store, loading the trip store and compacting it back to
+// trips.txt. Data is synthetic but
+// written in the users.txt / trips.txt formats and loaded through the real engine.
+//
+//   java CabSharingBenchmark [maxTrips] [bookingThreads]
+//   java CabSharingBenchmark stress [threads] [rounds]
+//
+// Trip counts run from 1,000 up to maxTrips (default 100,000) in powers of ten. Each
+// measurement is warmed up first and reports the mean and best time per operation.
+// "stress" only runs the overbooking check below, by default 500 threads for 200 rounds;
+// it also ends every full run. Either way it throws if a trip is ever oversold.
+class CabSharingBenchmark {
+    private static final String[] LOCATIONS = {"A", "B", "C", "D", "E", "F", "G", "H", "I", "J"};
+    private static final int USERS = 10_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("stress")) {
+            overbooking(args.length > 1 ? Integer.parseInt(args[1]) : 500, 10,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 200);
+            return;
+        }
+        int maxTrips = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+
+        for (int trips = 1_000; trips <= maxTrips; trips *= 10) {
+            Path dir = Files.createTempDirectory("cab-bench");
+            try {
+                writeUsers(dir.resolve(LocalRideMatchingEngine.USER_FILE), USERS);
+                writeTrips(dir.resolve(LocalRideMatchingEngine.TRIP_FILE), trips, USERS, new Random(trips));
+
+                LocalRideMatchingEngine[] engine = new LocalRideMatchingEngine[1];
+                measure("load  trips=" + trips, 1, 5, () -> {
+                    if (engine[0] != null) {
+                        engine[0].close();
+                    }
+                    engine[0] = new LocalRideMatchingEngine(dir);
+                });
+                Random random = new Random(42);
+                measure("search trips=" + trips, 10_000, 100_000, () ->
+                    sink = engine[0].search(LOCATIONS[random.nextInt(LOCATIONS.length)],
+                                            LOCATIONS[random.nextInt(LOCATIONS.length)], true));
+                measure("save  trips=" + trips, 1, 5, engine[0]::saveTrips);
+                engine[0].close();
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+        userStore(1_000_000);
+        geoSearch(maxTrips);
+        ridePool(maxTrips, 10_000);
+        surgePricing(threads);
+        hotRoute(maxTrips, threads);
+        contendedBooking(threads);
+        overbooking(500, 10, 200);
+    }
+
+    // The demand counters that every search and booking now updates: their cost on one
+    // thread and with every thread counting on the same route. Then a generated rush-hour
+    // trace is replayed through a RouteIndex and SurgePricing on simulated time, 20 ms
+    // per request, so that it spans several windows; checks multipliers stay in range
+    // and fall back to 1 once the window has passed without demand.
+    static void surgePricing(int threads) throws Exception {
+        RouteIndex routes = new RouteIndex();
+        SurgePricing counters = new SurgePricing(routes);
+        Random random = new Random(5);
+        measure("surge count", 100_000, 1_000_000, () ->
+            counters.searched(LOCATIONS[random.nextInt(LOCATIONS.length)], LOCATIONS[random.nextInt(LOCATIONS.length)]));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong counted = new AtomicLong();
+        CountDownLatch stop = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                long mine = 0;
+                while (stop.getCount() > 0) {
+                    counters.booked("Campus", "Station", 1);
+                    mine++;
+                }
+                counted.addAndGet(mine);
+                return null;
+            });
+        }
+        long t0 = System.nanoTime();
+        Thread.sleep(1000);
+        stop.countDown();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.printf("surge count threads=%d: %,.0f counts/s on one route%n",
+            threads, counted.get() * 1e9 / (System.nanoTime() - t0));
+
+        Path trace = Files.createTempFile("cab-surge", ".jsonl");
+        try {
+            ReplayDriver.generate(trace, 200_000, 2_000, 40, 1.1, new Random(25));
+            long[] now = {0};
+            SurgePricing surge = new SurgePricing(routes, () -> now[0]);
+            Map<String, Trip> trips = new HashMap<>();
+            Map<String, User> users = new HashMap<>();
+            long replayNanos = 0;
+            long requests = 0;
+            double highest = 1;
+            try (BufferedReader reader = Files.newBufferedReader(trace)) {
+                for (String line; (line = reader.readLine()) != null; ) {
+                    now[0] += 20;
+                    Map<String, String> r = ReplayDriver.parseJson(line);
+                    User user = r.containsKey("user")
+                        ? users.computeIfAbsent(r.get("user"), u -> new User(u, u, "", "Student", "0")) : null;
+                    Trip trip = trips.get(r.get("trip"));
+                    long start = System.nanoTime();
+                    switch (r.get("op")) {
+                        case "post": {
+                            Date departure = new Date(now[0] + Long.parseLong(r.get("departIn")));
+                            trip = new Trip(user, r.get("origin"), r.get("destination"), departure, departure,
+                                Integer.parseInt(r.get("seats")), surge.price(r.get("origin"), r.get("destination"),
+                                Double.parseDouble(r.get("price"))));
+                            trips.put(r.get("trip"), trip);
+                            routes.update(trip);
+                            break;
+                        }
+                        case "search":
+                            sink = routes.search(r.get("origin"), r.get("destination"));
+                            surge.searched(r.get("origin"), r.get("destination"));
+                            break;
+                        case "book": {
+                            int seats = Integer.parseInt(r.get("seats"));
+                            if (trip != null && trip.bookSeats(seats, user)) {
+                                routes.update(trip);
+                                surge.booked(trip.origin, trip.destination, seats);
+                            }
+                            break;
+                        }
+                        case "start":
+                            if (trip != null) {
+                                trip.startRide();
+                                routes.update(trip);
+                            }
+                            break;
+                        default:
+                    }
+                    replayNanos += System.nanoTime() - start;
+                    if (++requests % 10_000 == 0) {
+                        for (SurgePricing.RouteDemand demand : surge.demandByRoute().values()) {
+                            highest = Math.max(highest, demand.multiplier);
+                            if (demand.multiplier < 1 || demand.multiplier > SurgePricing.MAX_MULTIPLIER) {
+                                throw new IllegalStateException("Surge multiplier out of range: " + demand);
+                            }
+                        }
+                    }
+                }
+            }
+            List<Map.Entry<String, SurgePricing.RouteDemand>> busiest = new ArrayList<>(surge.demandByRoute().entrySet());
+            busiest.sort(Comparator.comparingLong(e -> -e.getValue().searches));
+            System.out.printf("surge replay: %,d requests over %d s simulated, %s per request, highest x%.1f%n",
+                requests, now[0] / 1000, format(replayNanos / Math.max(1, requests)), highest);
+            for (Map.Entry<String, SurgePricing.RouteDemand> route : busiest.subList(0, Math.min(3, busiest.size()))) {
+                System.out.printf("  %-6s %s%n", route.getKey(), route.getValue());
+            }
+            for (Map.Entry<String, SurgePricing.RouteDemand> route
+                    : busiest.subList(Math.max(0, busiest.size() - 3), busiest.size())) {
+                System.out.printf("  %-6s %s%n", route.getKey(), route.getValue());
+            }
+            now[0] += SurgePricing.WINDOW_MILLIS;
+            for (Map.Entry<String, SurgePricing.RouteDemand> route : busiest) {
+                String[] od = route.getKey().split("->");
+                if (surge.multiplier(od[0], od[1]) != 1) {
+                    throw new IllegalStateException("Surge on " + route.getKey() + " outlived its window");
+                }
+            }
+        } finally {
+            Files.deleteIfExists(trace);
+        }
+    }
+
+    // A rush on one route (campus to station) while another rider books on quiet routes:
+    // reports the quiet bookings' latency and the rush's throughput. Compare with
+    // -Dcab.store.shards=1 to see what sharding the store buys.
+    static void hotRoute(int tripCount, int threads) throws Exception {
+        Path dir = Files.createTempDirectory("cab-bench");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            writeUsers(dir.resolve(LocalRideMatchingEngine.USER_FILE), USERS);
+            LocalRideMatchingEngine engine = new LocalRideMatchingEngine(dir);
+            User host = engine.login("user0", "pw0");
+            Date departure = new Date(System.currentTimeMillis() + 3_600_000);
+            Random random = new Random(3);
+            for (int i = 0; i < tripCount; i++) {
+                engine.postTrip(host, LOCATIONS[random.nextInt(LOCATIONS.length)],
+                    LOCATIONS[random.nextInt(LOCATIONS.length)], departure, departure, 4, 1.0);
+            }
+            List<Trip> hot = new ArrayList<>();
+            List<Trip> quiet = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                hot.add(engine.postTrip(host, "Campus", "Station", departure, departure, 1_000_000, 1.0));
+            }
+            for (int i = 0; i < 50; i++) {
+                quiet.add(engine.postTrip(host, "Quiet" + i, "Station", departure, departure, 1_000_000, 1.0));
+            }
+            engine.sync().join();
+
+            AtomicLong rush = new AtomicLong();
+            CountDownLatch stop = new CountDownLatch(1);
+            for (int t = 0; t < threads; t++) {
+                int rider = 1 + t;
+                pool.submit(() -> {
+                    User user = engine.login("user" + rider, "pw" + rider);
+                    Random pick = new Random(rider);
+                    while (stop.getCount() > 0) {
+                        if (engine.bookSeats(hot.get(pick.nextInt(hot.size())).id, user, 1)) {
+                            rush.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            Thread.sleep(1000);
+            User rider = engine.login("user" + (USERS - 1), "pw" + (USERS - 1));
+            long[] latency = new long[500];
+            long before = rush.get();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < latency.length; i++) {
+                long start = System.nanoTime();
+                engine.bookSeats(quiet.get(i % quiet.size()).id, rider, 1);
+                latency[i] = System.nanoTime() - start;
+            }
+            long elapsed = System.nanoTime() - t0;
+            long rushed = rush.get() - before;
+            stop.countDown();
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+            Arrays.sort(latency);
+            System.out.printf("hot   shards=%d: quiet booking p50 %s p99 %s, rush %,.0f bookings/s%n",
+                LocalRideMatchingEngine.SHARDS, format(latency[latency.length / 2]),
+                format(latency[latency.length * 99 / 100]), rushed * 1e9 / elapsed);
+            engine.close();
+        } finally {
+            pool.shutdownNow();
+            deleteRecursively(dir);
+        }
+    }
+
+    // One ride-pool batch of single riders and small parties over the day's trips:
+    // planning is measured on its own (it books nothing), then the plan is booked once
+    // through the engine. Checks every planned booking went through and nothing was
+    // oversold.
+    static void ridePool(int tripCount, int requestCount) throws Exception {
+        Path dir = Files.createTempDirectory("cab-bench");
+        try {
+            writeUsers(dir.resolve(LocalRideMatchingEngine.USER_FILE), USERS);
+            writeTrips(dir.resolve(LocalRideMatchingEngine.TRIP_FILE), tripCount, USERS, new Random(tripCount));
+            LocalRideMatchingEngine engine = new LocalRideMatchingEngine(dir);
+            RidePool pool = new RidePool(engine);
+            Random random = new Random(11);
+            long now = System.currentTimeMillis();
+            List<RidePool.Request> requests = new ArrayList<>();
+            for (int i = 0; i < requestCount; i++) {
+                int origin = random.nextInt(LOCATIONS.length);
+                int destination = (origin + 1 + random.nextInt(LOCATIONS.length - 1)) % LOCATIONS.length;
+                long earliest = now + random.nextInt(23 * 60) * 60_000L;
+                int rider = random.nextInt(USERS);
+                requests.add(new RidePool.Request(engine.login("user" + rider, "pw" + rider),
+                    LOCATIONS[origin], LOCATIONS[destination], random.nextInt(4) == 0 ? 2 : 1,
+                    new Date(earliest), new Date(earliest + 60 * 60_000L), 0));
+            }
+            measure("pool  plan=" + requestCount, 3, 10, () -> sink = pool.plan(requests));
+            List<RidePool.Assignment> plan = pool.plan(requests);
+            long t0 = System.nanoTime();
+            List<RidePool.Assignment> booked = pool.apply(plan);
+            long elapsed = System.nanoTime() - t0;
+            int seats = 0;
+            for (RidePool.Assignment assignment : booked) {
+                seats += assignment.request.seats;
+            }
+            System.out.printf("pool  book=%d: %.1f ms (%d riders, %d seats placed)%n",
+                requestCount, elapsed / 1e6, booked.size(), seats);
+            pool.close();
+            engine.close();
+            if (booked.size() != plan.size()) {
+                throw new IllegalStateException("Planned bookings were refused");
+            }
+            for (RidePool.Assignment assignment : booked) {
+                if (assignment.trip.getAvailableSeats() < 0) {
+                    throw new IllegalStateException("Trip was oversold");
+                }
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    // Opening the user store, signing up one user and looking one up, from 10,000 users
+    // up to maxUsers: none of them should grow with the number of users. The store is
+    // indexed once before measuring, as an existing users.txt is on first open. Sign-ups
+    // are saved with a precomputed hash, so the PBKDF2 cost of each is left out.
+    static void userStore(int maxUsers) throws Exception {
+        String password = UserStore.hash("pw");
+        for (int users = 10_000; users <= maxUsers; users *= 10) {
+            Path dir = Files.createTempDirectory("cab-bench");
+            try {
+                Path file = dir.resolve(LocalRideMatchingEngine.USER_FILE);
+                writeUsers(file, users);
+                new UserStore(file, null).close();
+                measure("users open users=" + users, 3, 20, () -> new UserStore(file, null).close());
+                try (UserStore store = new UserStore(file, null)) {
+                    int[] next = {0};
+                    measure("users signup users=" + users, 100, 1_000, () -> {
+                        User user = new User("New", "new" + next[0]++, password, "Student", "0");
+                        store.add(user);
+                        store.save(Collections.singletonList(user));
+                    });
+                    Random random = new Random(users);
+                    int count = users;
+                    measure("users lookup users=" + users, 10_000, 100_000, () ->
+                        sink = store.get("user" + random.nextInt(count)));
+                    if (store.get("user" + (users - 1)) == null || store.get("new0") == null || store.get("nobody") != null) {
+                        throw new IllegalStateException("User store lost or invented a user");
+                    }
+                }
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    // Riders looking for trips passing within 300 m of their pickup and drop-off, on a
+    // synthetic city: a 20 km square street grid with a crossing every 200 m, and trips
+    // of up to 10 km each way between random crossings. Checks a sample of queries
+    // against a scan of every trip.
+    static void geoSearch(int tripCount) throws Exception {
+        Random random = new Random(7);
+        User host = new User("host", "host", "x", "Cab Driver", "0");
+        long now = System.currentTimeMillis();
+        List<Trip> trips = new ArrayList<>();
+        GeoIndex index = new GeoIndex();
+        for (int i = 0; i < tripCount; i++) {
+            int x = random.nextInt(101);
+            int y = random.nextInt(101);
+            int toX = Math.max(0, Math.min(100, x + random.nextInt(101) - 50));
+            int toY = Math.max(0, Math.min(100, y + random.nextInt(101) - 50));
+            Date departure = new Date(now + random.nextInt(24 * 60) * 60_000L);
+            Trip trip = new Trip(host, crossing(x, y).toString(), crossing(toX, toY).toString(),
+                                 departure, departure, 1 + random.nextInt(4), 5.0);
+            trips.add(trip);
+            index.update(trip);
+        }
+        double radius = 300;
+        for (int i = 0; i < 200; i++) {
+            GeoPoint pickup = crossing(random.nextInt(101), random.nextInt(101));
+            GeoPoint dropoff = crossing(random.nextInt(101), random.nextInt(101));
+            Set<Trip> expected = new HashSet<>();
+            for (Trip trip : trips) {
+                if (GeoIndex.passes(trip, pickup, dropoff, radius)) {
+                    expected.add(trip);
+                }
+            }
+            if (!expected.equals(new HashSet<>(index.near(pickup, dropoff, radius)))) {
+                throw new IllegalStateException("Geo search missed or invented trips near " + pickup);
+            }
+        }
+        measure("near  trips=" + tripCount, 10_000, 100_000, () ->
+            sink = index.near(crossing(random.nextInt(101), random.nextInt(101)),
+                              crossing(random.nextInt(101), random.nextInt(101)), radius));
+    }
+
+    // Crossing (x, y) of the synthetic street grid, 200 m apart.
+    private static GeoPoint crossing(int x, int y) {
+        GeoPoint corner = GeoPoint.PLACES.get("A");
+        double lat = corner.lat + y * 200 / GeoPoint.METERS_PER_DEGREE;
+        double lon = corner.lon + x * 200 / (GeoPoint.METERS_PER_DEGREE * Math.cos(Math.toRadians(corner.lat)));
+        return GeoPoint.of(new GeoPoint(lat, lon).toString());
+    }
+
+    // Many threads booking single seats on one very large trip, as on a popular route
+    // right after it is posted. Reports throughput and checks nothing was oversold.
+    static void contendedBooking(int threads) throws Exception {
+        int seats = 2_000_000;
+        Trip trip = new Trip(new User("host", "host", "x", "Cab Driver", "0"), "A", "B",
+                             new Date(), new Date(), seats, 1.0);
+        User[] riders = new User[threads];
+        for (int i = 0; i < threads; i++) {
+            riders[i] = new User("rider" + i, "rider" + i, "x", "Student", "0");
+        }
+        AtomicLong booked = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (User rider : riders) {
+            done.add(pool.submit(() -> {
+                start.await();
+                long mine = 0;
+                while (trip.bookSeats(1, rider)) {
+                    mine++;
+                }
+                booked.addAndGet(mine);
+                return null;
+            }));
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+
+        int recorded = trip.passengers.values().stream().mapToInt(Integer::intValue).sum();
+        System.out.printf("book  threads=%d: %,.0f bookings/s (%d booked, %d recorded, %d left)%n",
+            threads, booked.get() * 1e9 / elapsed, booked.get(), recorded, trip.getAvailableSeats());
+        if (booked.get() != seats || recorded != seats) {
+            throw new IllegalStateException("Trip was oversold or lost bookings");
+        }
+    }
+
+    // Many threads racing for the last seats of a small trip, round after round. Each
+    // thread asks for 1 to 3 seats and, if refused, for 1; seats are never given back, so
+    // every round must end with the trip exactly full, each rider holding what their
+    // successful call booked, and nothing sold twice.
+    static void overbooking(int threads, int seats, int rounds) throws Exception {
+        User host = new User("host", "host", "x", "Cab Driver", "0");
+        Trip[] trips = new Trip[rounds];
+        for (int r = 0; r < rounds; r++) {
+            trips[r] = new Trip(host, "A", "B", new Date(), new Date(), seats, 1.0);
+        }
+        int[][] granted = new int[rounds][threads];
+        CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            User rider = new User("rider" + t, "rider" + t, "x", "Student", "0");
+            done.add(pool.submit(() -> {
+                Random random = new Random(thread);
+                for (int r = 0; r < rounds; r++) {
+                    start.await();
+                    int wanted = 1 + random.nextInt(3);
+                    if (trips[r].bookSeats(wanted, rider)) {
+                        granted[r][thread] = wanted;
+                    } else if (trips[r].bookSeats(1, rider)) {
+                        granted[r][thread] = 1;
+                    }
+                }
+                return null;
+            }));
+        }
+        long t0 = System.nanoTime();
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+
+        for (int r = 0; r < rounds; r++) {
+            Trip trip = trips[r];
+            int sold = 0;
+            for (int t = 0; t < threads; t++) {
+                int held = trip.passengers.getOrDefault(new User("rider" + t, "rider" + t, "x", "Student", "0"), 0);
+                if (held != granted[r][t]) {
+                    throw new IllegalStateException("Round " + r + ": rider" + t + " was granted " + granted[r][t]
+                        + " seat(s) but holds " + held);
+                }
+                sold += granted[r][t];
+            }
+            if (sold != seats || trip.getAvailableSeats() != 0 || trip.passengers.size() > seats) {
+                throw new IllegalStateException("Round " + r + ": " + sold + " of " + seats + " seats sold, "
+                    + trip.getAvailableSeats() + " left; trip was oversold or lost bookings");
+            }
+        }
+        System.out.printf("overbooking threads=%d seats=%d rounds=%d: no trip oversold (%.1f ms per round)%n",
+            threads, seats, rounds, elapsed / 1e6 / rounds);
+    }
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static void measure(String name, int warmup, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            op.run();
+            long t = System.nanoTime() - t0;
+            total += t;
+            best = Math.min(best, t);
+        }
+        System.out.printf("%-22s mean %12s  best %12s%n", name + ":", format(total / iterations), format(best));
+    }
+
+    private static String format(long nanos) {
+        if (nanos >= 1_000_000) return String.format("%.2f ms", nanos / 1e6);
+        if (nanos >= 1_000) return String.format("%.2f us", nanos / 1e3);
+        return nanos + " ns";
+    }
+
+    static void writeUsers(Path file, int count) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (int i = 0; i < count; i++) {
+                writer.println(String.join(",", "User " + i, "user" + i, "pw" + i,
+                    i % 10 == 0 ? "Cab Driver" : "Student", String.valueOf(9_000_000_000L + i)));
+            }
+        }
+    }
+
+    // One line per trip in the trips.txt format: roughly a third of the trips are
+    // full, a tenth have started, and departures are spread over the next day.
+    static void writeTrips(Path file, int count, int users, Random random) throws IOException {
+        long now = System.currentTimeMillis();
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (int i = 0; i < count; i++) {
+                int origin = random.nextInt(LOCATIONS.length);
+                int destination = (origin + 1 + random.nextInt(LOCATIONS.length - 1)) % LOCATIONS.length;
+                long departure = now + random.nextInt(24 * 60) * 60_000L;
+                int maxPassengers = 1 + random.nextInt(4);
+                int booked = random.nextInt(3) == 0 ? maxPassengers : random.nextInt(maxPassengers);
+                StringBuilder line = new StringBuilder();
+                line.append(new UUID(random.nextLong(), random.nextLong())).append(',')
+                    .append("user").append(random.nextInt(users)).append(',')
+                    .append(LOCATIONS[origin]).append(',')
+                    .append(LOCATIONS[destination]).append(',')
+                    .append(departure).append(',')
+                    .append(departure + (15 + random.nextInt(60)) * 60_000L).append(',')
+                    .append(maxPassengers).append(',')
+                    .append(1 + random.nextInt(20)).append(".0,")
+                    .append(random.nextInt(10) == 0);
+                for (int seat = 0; seat < booked; seat++) {
+                    line.append(",user").append(random.nextInt(users)).append(",1");
+                }
+                writer.println(line);
+            }
+        }
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                Files.delete(entry);
+            }
+        }
+        Files.delete(dir);
+    }
+}
@@ -3,44 +3,51 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
-import java.text.SimpleDateFormat;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.io.*;
 import java.nio.file.*;
-import javax.swing.Timer; // Add this import at the top of your file
 
 
 public class CabSharingSystem extends JFrame {
-    private Map<String, Trip> tripMap = new ConcurrentHashMap<>(); // Add this line
+    private static final long serialVersionUID = 1L;
+
+    // How often riders waiting in the ride pool are matched, and how long they wait.
+    private static final long POOL_WINDOW_SECONDS = Long.getLong("cab.pool.windowSeconds", 30);
+    private static final long POOL_WAIT_MINUTES = 60;
+    private static final String START_FAILED =
+        "Could not start the trip: it has already started, was cancelled, or could not be saved.";
+
+    private final RideMatchingEngine engine;
+    private final RidePool ridePool;
     private JPanel cardPanel;
     private CardLayout cardLayout;
     private JPanel passengerWaitingPanel;
     private JPanel hostTripPanel;
-
-
-    private static final String USER_FILE = "users.txt";
-    private static final String TRIP_FILE = "trips.txt";
-    
-    private Map<String, User> users = new ConcurrentHashMap<>();
-    private List<Trip> trips = new CopyOnWriteArrayList<>();
+    private final TripRefreshScheduler refreshScheduler;
+    private TripRefreshScheduler.Subscription waitingRefresh;
+    private TripRefreshScheduler.Subscription hostRefresh;
+    private Trip hostTrip;
     private User currentUser;
 
-   
-
-
-    private Set<Trip> displayedTrips = new HashSet<>();
-
-    private DefaultListModel<Trip> listModel = new DefaultListModel<>();
+    private final TripListModel listModel = new TripListModel();
     private JList<Trip> tripList;
+    // Search radius around the rider's pickup and drop-off; 0 matches the route exactly.
+    private JSpinner radiusSpinner;
 
     public CabSharingSystem() {
+        this(new LocalRideMatchingEngine());
+    }
+
+    public CabSharingSystem(RideMatchingEngine engine) {
+        this.engine = engine;
+        this.refreshScheduler = new TripRefreshScheduler(engine.changes());
+        this.ridePool = new RidePool(engine);
         setTitle("Cab Sharing System");
         setSize(700, 400);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        loadUsers();
-        loadTrips();
-
         cardLayout = new CardLayout();
         cardPanel = new JPanel(cardLayout);
 
@@ -55,6 +62,35 @@ public class CabSharingSystem extends JFrame {
 
         // Start a thread to update trip information
         new Thread(this::updateTripInformation).start();
+
+        ScheduledExecutorService poolTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ride-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poolTimer.scheduleWithFixedDelay(this::matchRidePool, POOL_WINDOW_SECONDS, POOL_WINDOW_SECONDS, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            poolTimer.shutdownNow();
+            ridePool.close();
+            engine.close();
+        }));
+    }
+
+    // Runs one ride-pool batch and takes the user to their trip if they were placed.
+    private void matchRidePool() {
+        try {
+            for (RidePool.Assignment assignment : ridePool.match()) {
+                if (assignment.request.user.equals(currentUser)) {
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(this, "You have been placed on a trip!\n" + assignment.trip);
+                        showPassengerWaitingScreen(assignment.trip);
+                    });
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.warn(() -> "Ride pool batch failed: " + e);
+        }
     }
 
     
@@ -66,7 +102,10 @@ public class CabSharingSystem extends JFrame {
         passengerWaitingPanel.add(scrollPane, BorderLayout.CENTER);
 
         JButton backButton = new JButton("Back to Search");
-        backButton.addActionListener(e -> cardLayout.show(cardPanel, "MainPage"));
+        backButton.addActionListener(e -> {
+            stopWaitingRefresh();
+            cardLayout.show(cardPanel, "MainPage");
+        });
         passengerWaitingPanel.add(backButton, BorderLayout.SOUTH);
 
         cardPanel.add(passengerWaitingPanel, "PassengerWaiting");
@@ -86,25 +125,55 @@ public class CabSharingSystem extends JFrame {
         buttonPanel.add(backButton);
         hostTripPanel.add(buttonPanel, BorderLayout.SOUTH);
 
-        backButton.addActionListener(e -> cardLayout.show(cardPanel, "MainPage"));
+        backButton.addActionListener(e -> {
+            stopHostRefresh();
+            cardLayout.show(cardPanel, "MainPage");
+        });
+
+        // Registered once here; the screen works on whichever trip hostTrip points at
+        beginTripButton.addActionListener(e -> {
+            Trip trip = hostTrip;
+            if (trip == null) {
+                return;
+            }
+            stopHostRefresh();
+            inBackground(beginTripButton, () -> engine.startRide(trip.id), started -> {
+                if (!started) {
+                    JOptionPane.showMessageDialog(this, START_FAILED);
+                    if (trip.isStarted) {
+                        cardLayout.show(cardPanel, "MainPage");
+                    } else {
+                        showHostTripScreen(trip);
+                    }
+                    return;
+                }
+                warnIfNotSaved();
+                JOptionPane.showMessageDialog(this, "Trip started! Total fare: $" + trip.calculateTotalFare());
+                cardLayout.show(cardPanel, "MainPage");
+            });
+        });
 
         cardPanel.add(hostTripPanel, "HostTrip");
     }
 
     private void showPassengerWaitingScreen(Trip trip) {
         JTextArea tripInfoArea = findTextArea(passengerWaitingPanel);
-        updatePassengerWaitingInfo(tripInfoArea, trip);
-
-        // Start a timer to update the waiting screen periodically
-        Timer timer = new Timer(5000, e -> updatePassengerWaitingInfo(tripInfoArea, trip));
-        timer.start();
-        tripInfoArea.putClientProperty("timer", timer);
 
+        // Refresh the waiting screen as soon as the trip changes
+        stopWaitingRefresh();
+        if (!trip.isStarted) {
+            waitingRefresh = refreshScheduler.subscribe(trip, () -> updatePassengerWaitingInfo(tripInfoArea, trip),
+                () -> tripGone("Your trip was cancelled."));
+        }
         cardLayout.show(cardPanel, "PassengerWaiting");
+        updatePassengerWaitingInfo(tripInfoArea, trip);
+        if (waitingRefresh != null && engine.getTrip(trip.id) == null) {
+            stopWaitingRefresh();
+            tripGone("Your trip was cancelled.");
+        }
     }
 
     private void updatePassengerWaitingInfo(JTextArea tripInfoArea, Trip trip) {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
         StringBuilder info = new StringBuilder();
         info.append("Trip Number: ").append(trip.id).append("\n");
         info.append("Status: ").append(trip.isStarted ? "Started" : "Waiting").append("\n");
@@ -112,13 +181,13 @@ public class CabSharingSystem extends JFrame {
         info.append("Host Phone: ").append(trip.host.phone).append("\n");
         info.append("From: ").append(trip.origin).append("\n");
         info.append("To: ").append(trip.destination).append("\n");
-        info.append("Departure: ").append(sdf.format(trip.departureTime)).append("\n");
+        info.append("Departure: ").append(Trip.TIME_FORMAT.format(trip.departureTime.toInstant())).append("\n");
         info.append("Available Seats: ").append(trip.getAvailableSeats()).append("\n");
 
         tripInfoArea.setText(info.toString());
 
         if (trip.isStarted) {
-            ((Timer) tripInfoArea.getClientProperty("timer")).stop();
+            stopWaitingRefresh();
             JOptionPane.showMessageDialog(this, "Your trip has started!");
             cardLayout.show(cardPanel, "MainPage");
         }
@@ -126,24 +195,71 @@ public class CabSharingSystem extends JFrame {
 
     private void showHostTripScreen(Trip trip) {
         JTextArea participantsArea = findTextArea(hostTripPanel);
-        JButton beginTripButton = findButton(hostTripPanel, "Begin Trip");
+        hostTrip = trip;
 
+        // Refresh the participant list as soon as the trip changes
+        stopHostRefresh();
+        hostRefresh = refreshScheduler.subscribe(trip, () -> updateHostTripInfo(participantsArea, trip),
+            () -> tripGone("This trip was cancelled."));
         updateHostTripInfo(participantsArea, trip);
+        cardLayout.show(cardPanel, "HostTrip");
+        if (engine.getTrip(trip.id) == null) {
+            stopHostRefresh();
+            tripGone("This trip was cancelled.");
+        }
+    }
 
-        beginTripButton.addActionListener(e -> {
-            trip.startRide();
-            tripMap.put(trip.id, trip);
-            saveTrips();
-            JOptionPane.showMessageDialog(this, "Trip started! Total fare: $" + trip.calculateTotalFare());
-            cardLayout.show(cardPanel, "MainPage");
-        });
+    // Leaves a trip screen whose trip has been cancelled or archived meanwhile.
+    private void tripGone(String message) {
+        JOptionPane.showMessageDialog(this, message);
+        cardLayout.show(cardPanel, "MainPage");
+    }
 
-        // Start a timer to update the host screen periodically
-        Timer timer = new Timer(5000, e -> updateHostTripInfo(participantsArea, trip));
-        timer.start();
-        participantsArea.putClientProperty("timer", timer);
+    private void stopWaitingRefresh() {
+        if (waitingRefresh != null) {
+            waitingRefresh.cancel();
+            waitingRefresh = null;
+        }
+    }
 
-        cardLayout.show(cardPanel, "HostTrip");
+    private void stopHostRefresh() {
+        if (hostRefresh != null) {
+            hostRefresh.cancel();
+            hostRefresh = null;
+        }
+    }
+
+    // Runs an engine call that may wait on a store lock or the disk on a worker thread,
+    // with `button` disabled meanwhile, and hands its result to `then` on the EDT.
+    private <T> void inBackground(JButton button, Supplier<T> call, Consumer<T> then) {
+        button.setEnabled(false);
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() {
+                return call.get();
+            }
+
+            @Override
+            protected void done() {
+                button.setEnabled(true);
+                try {
+                    then.accept(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    Log.warn(() -> "Engine call failed: " + cause);
+                    JOptionPane.showMessageDialog(CabSharingSystem.this, "Something went wrong: " + cause.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    // Changes are saved in the background; tell the user if the last one didn't make it.
+    private void warnIfNotSaved() {
+        engine.sync().exceptionally(error -> {
+            SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, "Your last change could not be saved: " + error.getMessage()));
+            return null;
+        });
     }
 
     private JTextArea findTextArea(JPanel panel) {
@@ -158,21 +274,6 @@ public class CabSharingSystem extends JFrame {
         throw new RuntimeException("JTextArea not found in panel");
     }
 
-    // Helper method to find a JButton with a specific text in a panel
-    private JButton findButton(JPanel panel, String buttonText) {
-        for (Component comp : panel.getComponents()) {
-            if (comp instanceof JPanel) {
-                for (Component innerComp : ((JPanel) comp).getComponents()) {
-                    if (innerComp instanceof JButton && ((JButton) innerComp).getText().equals(buttonText)) {
-                        return (JButton) innerComp;
-                    }
-                }
-            }
-        }
-        throw new RuntimeException("Button '" + buttonText + "' not found in panel");
-    }
-
-
     private void updateHostTripInfo(JTextArea participantsArea, Trip trip) {
         StringBuilder info = new StringBuilder();
         info.append("Trip Number: ").append(trip.id).append("\n\n");
@@ -192,202 +293,73 @@ public class CabSharingSystem extends JFrame {
 
 
 
-    private void loadUsers() {
-        try {
-            List<String> lines = Files.readAllLines(Paths.get(USER_FILE));
-            users.clear(); // Clear existing users before loading
-            System.out.println("Loading users. Total lines: " + lines.size()); // Debug print
-            for (String line : lines) {
-                String[] parts = line.split(",");
-                if (parts.length == 5) {
-                    User user = new User(parts[0], parts[1], parts[2], parts[3], parts[4]);
-                    users.put(parts[1], user);
-                    System.out.println("Loaded user: " + user.username); // Debug print
-                }
-            }
-            System.out.println("Finished loading users. Total users: " + users.size()); // Debug print
-        } catch (IOException e) {
-            System.out.println("User file not found. Starting with empty user list.");
-        }
-    }
-
-    private void loadTrips() {
-        try {
-            List<String> lines = Files.readAllLines(Paths.get(TRIP_FILE));
-            tripMap.clear();
-            System.out.println("Loading trips. Total lines: " + lines.size());
-            for (String line : lines) {
-                String[] parts = line.split(",");
-                if (parts.length >= 9) { // Changed from 8 to 9 to include isStarted
-                    User host = users.get(parts[1]);
-                    if (host != null) {
-                        Trip trip = new Trip(
-                            host,
-                            parts[2],
-                            parts[3],
-                            new Date(Long.parseLong(parts[4])),
-                            new Date(Long.parseLong(parts[5])),
-                            Integer.parseInt(parts[6]),
-                            Double.parseDouble(parts[7])
-                        );
-                        trip.id = parts[0];
-                        trip.isStarted = Boolean.parseBoolean(parts[8]); // Add this line
-                        for (int i = 9; i < parts.length; i += 2) {
-                            User passenger = users.get(parts[i]);
-                            if (passenger != null) {
-                                trip.bookSeats(Integer.parseInt(parts[i + 1]), passenger);
-                            }
-                        }
-                        tripMap.put(trip.id, trip);
-                        System.out.println("Loaded trip: " + trip);
-                    }
-                }
-            }
-            System.out.println("Finished loading trips. Total trips: " + tripMap.size());
-        } catch (IOException e) {
-            System.out.println("Trip file not found. Starting with empty trip list.");
-        }
-    }
-
-    private void saveTrips() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(TRIP_FILE))) {
-            for (Trip trip : tripMap.values()) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(String.join(",",
-                    trip.id,
-                    trip.host.username,
-                    trip.origin,
-                    trip.destination,
-                    String.valueOf(trip.departureTime.getTime()),
-                    String.valueOf(trip.arrivalTime.getTime()),
-                    String.valueOf(trip.maxPassengers),
-                    String.valueOf(trip.pricePerPassenger),
-                    String.valueOf(trip.isStarted) // Add this line
-                ));
-                for (Map.Entry<User, Integer> entry : trip.passengers.entrySet()) {
-                    sb.append(",").append(entry.getKey().username).append(",").append(entry.getValue());
-                }
-                writer.println(sb.toString());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void updateTripList(String origin, String destination) {
+    // countDemand: whether the user asked for this search, rather than a refresh of it.
+    private void updateTripList(String origin, String destination, boolean countDemand) {
         SwingUtilities.invokeLater(() -> {
-            Set<Trip> newDisplayedTrips = new HashSet<>();
-            System.out.println("Updating trip list. Total trips: " + tripMap.size());
-            for (Trip trip : tripMap.values()) {
-                System.out.println("Checking trip: " + trip.id + 
-                                   ", Origin: " + trip.origin + 
-                                   ", Destination: " + trip.destination + 
-                                   ", Available Seats: " + trip.getAvailableSeats() + 
-                                   ", Is Full: " + trip.isFull() + 
-                                   ", Is Started: " + trip.isStarted);
-                if (trip.origin.equals(origin) && trip.destination.equals(destination) && !trip.isFull() && !trip.isStarted) {
-                    newDisplayedTrips.add(trip);
-                    System.out.println("Added trip to display: " + trip.id);
-                }
-            }
-    
-            listModel.clear();
-            for (Trip trip : newDisplayedTrips) {
-                listModel.addElement(trip);
-            }
-            System.out.println("Updated list model. New size: " + listModel.size());
+            int radius = radiusSpinner == null ? 0 : (int) radiusSpinner.getValue();
+            GeoPoint pickup = GeoPoint.of(origin);
+            GeoPoint dropoff = GeoPoint.of(destination);
+            List<Trip> matches = radius > 0 && pickup != null && dropoff != null
+                ? engine.searchNear(pickup, dropoff, radius)
+                : engine.search(origin, destination, countDemand);
+
+            listModel.setTrips(matches);
+            Log.debug(() -> "Updated list model. New size: " + listModel.getSize());
         });
     }
 
+    // Follows the trip journal for changes made by other processes and refreshes the
+    // search results whenever the change feed has moved on since the last pass. The
+    // engine normally hears about other processes through its file watcher already;
+    // this loop is the fallback when watching is off or events get lost.
     private void updateTripInformation() {
+        TripChangeFeed feed = engine.changes();
+        long lastSeq = feed.lastSeq();
         while (true) {
-            SwingUtilities.invokeLater(() -> {
-                loadTrips(); // Reload trips from file
-                if (tripList != null) {
-                    String origin = "";
-                    String destination = "";
-                    
-                    // Find the parent container of the tripList
-                    Container parent = tripList.getParent();
-                    while (parent != null && !(parent instanceof JPanel)) {
-                        parent = parent.getParent();
-                    }
-                    
-                    if (parent instanceof JPanel) {
-                        JPanel searchPanel = (JPanel) ((JPanel) parent).getComponent(0);
-                        if (searchPanel.getComponentCount() >= 4) {
-                            JComboBox<?> originCombo = (JComboBox<?>) searchPanel.getComponent(1);
-                            JComboBox<?> destinationCombo = (JComboBox<?>) searchPanel.getComponent(3);
-                            origin = originCombo.getSelectedItem().toString();
-                            destination = destinationCombo.getSelectedItem().toString();
+            engine.refresh();
+            List<TripChangeFeed.TripChange> changes = feed.changesSince(lastSeq);
+            if (changes == null || !changes.isEmpty()) {
+                lastSeq = changes == null ? feed.lastSeq() : changes.get(changes.size() - 1).seq;
+                SwingUtilities.invokeLater(() -> {
+                    if (tripList != null) {
+                        String origin = "";
+                        String destination = "";
+
+                        // Find the parent container of the tripList
+                        Container parent = tripList.getParent();
+                        while (parent != null && !(parent instanceof JPanel)) {
+                            parent = parent.getParent();
+                        }
+
+                        if (parent instanceof JPanel) {
+                            JPanel searchPanel = (JPanel) ((JPanel) parent).getComponent(0);
+                            if (searchPanel.getComponentCount() >= 4) {
+                                JComboBox<?> originCombo = (JComboBox<?>) searchPanel.getComponent(1);
+                                JComboBox<?> destinationCombo = (JComboBox<?>) searchPanel.getComponent(3);
+                                origin = originCombo.getSelectedItem().toString();
+                                destination = destinationCombo.getSelectedItem().toString();
+                            }
                         }
+
+                        String from = origin;
+                        String to = destination;
+                        Log.debug(() -> "Updating trip information. Origin: " + from + ", Destination: " + to);
+                        updateTripList(origin, destination, false);
+                    } else {
+                        Log.debug(() -> "Trip list is null");
                     }
-                    
-                    System.out.println("Updating trip information. Origin: " + origin + ", Destination: " + destination);
-                    updateTripList(origin, destination);
-                } else {
-                    System.out.println("Trip list is null");
-                }
-            });
+                });
+            }
             try {
-                Thread.sleep(5000); // Update every 5 seconds
+                Thread.sleep(5000); // Poll every 5 seconds
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                Log.debug(() -> "Trip polling stopped");
+                return;
             }
         }
     }
 
-///////////
-// private void loadTrips() {
-//     try {
-//         List<String> lines = Files.readAllLines(Paths.get(TRIP_FILE));
-//         tripMap.clear(); // Clear existing trips before loading
-//         System.out.println("Loading trips. Total lines: " + lines.size()); // Debug print
-//         for (String line : lines) {
-//             String[] parts = line.split(",");
-//             if (parts.length >= 8) {
-//                 User host = users.get(parts[1]);
-//                 if (host != null) {
-//                     Trip trip = new Trip(
-//                         host,
-//                         parts[2],
-//                         parts[3],
-//                         new Date(Long.parseLong(parts[4])),
-//                         new Date(Long.parseLong(parts[5])),
-//                         Integer.parseInt(parts[6]),
-//                         Double.parseDouble(parts[7])
-//                     );
-//                     trip.id = parts[0];
-//                     for (int i = 8; i < parts.length; i += 2) {
-//                         User passenger = users.get(parts[i]);
-//                         if (passenger != null) {
-//                             trip.bookSeats(Integer.parseInt(parts[i + 1]), passenger);
-//                         }
-//                     }
-//                     tripMap.put(trip.id, trip);
-//                     System.out.println("Loaded trip: " + trip); // Debug print
-//                 }
-//             }
-//         }
-//         System.out.println("Finished loading trips. Total trips: " + tripMap.size()); // Debug print
-//     } catch (IOException e) {
-//         System.out.println("Trip file not found. Starting with empty trip list.");
-//     }
-// }
-
-    private void saveUsers() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(USER_FILE))) {
-            for (User user : users.values()) {
-                writer.println(String.join(",", user.name, user.username, user.password, user.role, user.phone));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-
-
-
     private void createLoginPage() {
         JPanel loginPanel = new JPanel(new GridLayout(3, 2));
         JTextField usernameField = new JTextField();
@@ -405,12 +377,15 @@ public class CabSharingSystem extends JFrame {
         loginButton.addActionListener(e -> {
             String username = usernameField.getText();
             String password = new String(passwordField.getPassword());
-            if (users.containsKey(username) && users.get(username).password.equals(password)) {
-                currentUser = users.get(username);
-                cardLayout.show(cardPanel, "MainPage");
-            } else {
-                JOptionPane.showMessageDialog(this, "Invalid credentials");
-            }
+            // Checking the password hash, and upgrading a plain-text one, takes a while
+            inBackground(loginButton, () -> engine.login(username, password), user -> {
+                if (user != null) {
+                    currentUser = user;
+                    cardLayout.show(cardPanel, "MainPage");
+                } else {
+                    JOptionPane.showMessageDialog(this, "Invalid credentials");
+                }
+            });
         });
 
         goToSignUpButton.addActionListener(e -> cardLayout.show(cardPanel, "SignUp"));
@@ -453,16 +428,22 @@ public class CabSharingSystem extends JFrame {
     
         signUpButton.addActionListener(e -> {
             if (otpField.getText().equals("0000")) {
+                String name = nameField.getText();
                 String username = usernameField.getText();
-                if (users.containsKey(username)) {
-                    JOptionPane.showMessageDialog(this, "Username already exists");
-                } else {
-                    currentUser = new User(nameField.getText(), username, new String(passwordField.getPassword()),
-                            roleCombo.getSelectedItem().toString(), phoneField.getText());
-                    users.put(username, currentUser);
-                    saveUsers();
-                    cardLayout.show(cardPanel, "MainPage");
-                }
+                String password = new String(passwordField.getPassword());
+                String role = roleCombo.getSelectedItem().toString();
+                String phone = phoneField.getText();
+                // Hashes the password and waits for the user to be written
+                inBackground(signUpButton, () -> engine.signUp(name, username, password, role, phone), user -> {
+                    if (user == null) {
+                        JOptionPane.showMessageDialog(this, "Could not sign up: the username is taken, a field is empty"
+                            + " or holds a comma, or the account could not be saved");
+                    } else {
+                        currentUser = user;
+                        warnIfNotSaved();
+                        cardLayout.show(cardPanel, "MainPage");
+                    }
+                });
             } else {
                 JOptionPane.showMessageDialog(this, "Invalid OTP");
             }
@@ -490,12 +471,13 @@ public class CabSharingSystem extends JFrame {
 
     private JPanel createPostTripPanel() {
         JPanel postTripPanel = new JPanel(new GridLayout(9, 2));
-        JComboBox<String> originCombo = new JComboBox<>(new String[]{"A", "B", "C"});
-        JComboBox<String> destinationCombo = new JComboBox<>(new String[]{"A", "B", "C"});
+        JComboBox<String> originCombo = placeCombo();
+        JComboBox<String> destinationCombo = placeCombo();
         JSpinner departureTimeSpinner = new JSpinner(new SpinnerDateModel());
         JSpinner arrivalTimeSpinner = new JSpinner(new SpinnerDateModel());
         JSpinner maxPassengersSpinner = new JSpinner(new SpinnerNumberModel(1, 1, 10, 1));
         JTextField priceField = new JTextField();
+        JLabel surgeLabel = new JLabel();
         JButton postTripButton = new JButton("Post Trip");
         JButton beginRideButton = new JButton("Begin Ride");
 
@@ -512,11 +494,35 @@ public class CabSharingSystem extends JFrame {
         postTripPanel.add(maxPassengersSpinner);
         postTripPanel.add(new JLabel("Price per Passenger:"));
         postTripPanel.add(priceField);
+        postTripPanel.add(new JLabel("Demand:"));
+        postTripPanel.add(surgeLabel);
         postTripPanel.add(postTripButton);
         postTripPanel.add(beginRideButton);
 
+        // The route's surge multiplier, and the price it suggests for what the host typed
+        Runnable showSurge = () -> {
+            Object origin = originCombo.getSelectedItem();
+            Object destination = destinationCombo.getSelectedItem();
+            if (origin == null || destination == null) {
+                surgeLabel.setText("");
+                return;
+            }
+            double multiplier = engine.surgeMultiplier(origin.toString(), destination.toString());
+            String text = String.format("x%.1f", multiplier);
+            try {
+                text += String.format(" (suggested $%.2f)", Double.parseDouble(priceField.getText()) * multiplier);
+            } catch (NumberFormatException e) {
+                // no price typed yet
+            }
+            surgeLabel.setText(text);
+        };
+        originCombo.addActionListener(e -> showSurge.run());
+        destinationCombo.addActionListener(e -> showSurge.run());
+        priceField.addCaretListener(e -> showSurge.run());
+        showSurge.run();
+
         postTripButton.addActionListener(e -> {
-            Trip newTrip = new Trip(
+            Trip newTrip = engine.postTrip(
                 currentUser,
                 originCombo.getSelectedItem().toString(),
                 destinationCombo.getSelectedItem().toString(),
@@ -525,26 +531,32 @@ public class CabSharingSystem extends JFrame {
                 (int) maxPassengersSpinner.getValue(),
                 Double.parseDouble(priceField.getText())
             );
-            tripMap.put(newTrip.id, newTrip);
-            saveTrips();
-            JOptionPane.showMessageDialog(this, "Trip posted successfully!");
+            if (newTrip == null) {
+                JOptionPane.showMessageDialog(this, "Could not post the trip. Places cannot contain commas or line breaks,"
+                    + " and must be at most " + (int) (GeoIndex.MAX_TRIP_METERS / 1000) + " km apart.");
+                return;
+            }
+            warnIfNotSaved();
+            JOptionPane.showMessageDialog(this, "Trip posted successfully at $" + newTrip.pricePerPassenger + " per passenger!");
             showHostTripScreen(newTrip);
         });
     
 
 
         beginRideButton.addActionListener(e -> {
-            Optional<Trip> fullTrip = tripMap.values().stream()
-                .filter(trip -> trip.host.equals(currentUser) && trip.isFull() && !trip.isStarted)
-                .findFirst();
-            
+            Optional<Trip> fullTrip = engine.findFullTrip(currentUser);
+
             if (fullTrip.isPresent()) {
                 Trip trip = fullTrip.get();
-                trip.startRide();
-                tripMap.put(trip.id, trip); // Update the trip in the map
-                saveTrips(); // Save the updated trips to file
-                JOptionPane.showMessageDialog(this, "Ride started! Total fare: $" + trip.calculateTotalFare());
-                updateTripList(trip.origin, trip.destination); // Update the trip list
+                inBackground(beginRideButton, () -> engine.startRide(trip.id), started -> {
+                    if (!started) {
+                        JOptionPane.showMessageDialog(this, START_FAILED);
+                        return;
+                    }
+                    warnIfNotSaved();
+                    JOptionPane.showMessageDialog(this, "Ride started! Total fare: $" + trip.calculateTotalFare());
+                    updateTripList(trip.origin, trip.destination, false); // Update the trip list
+                });
             } else {
                 JOptionPane.showMessageDialog(this, "No full trips available to start");
             }
@@ -554,22 +566,36 @@ public class CabSharingSystem extends JFrame {
 
     private JPanel createSearchTripsPanel() {
         JPanel searchTripsPanel = new JPanel(new BorderLayout());
-        JPanel searchPanel = new JPanel(new GridLayout(3, 2));
-        JComboBox<String> originCombo = new JComboBox<>(new String[]{"A", "B", "C"});
-        JComboBox<String> destinationCombo = new JComboBox<>(new String[]{"A", "B", "C"});
+        JPanel searchPanel = new JPanel(new GridLayout(4, 2));
+        JComboBox<String> originCombo = placeCombo();
+        JComboBox<String> destinationCombo = placeCombo();
+        radiusSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 50_000, 100));
         JButton searchButton = new JButton("Search");
 
         searchPanel.add(new JLabel("Origin:"));
         searchPanel.add(originCombo);
         searchPanel.add(new JLabel("Destination:"));
         searchPanel.add(destinationCombo);
-        searchPanel.add(new JLabel());
+        searchPanel.add(new JLabel("Within (m):"));
+        searchPanel.add(radiusSpinner);
+        JButton poolButton = new JButton("Pool Me");
+        searchPanel.add(poolButton);
         searchPanel.add(searchButton);
 
-        tripList = new JList<>(listModel);
+        tripList = new JList<>();
+        listModel.install(tripList);
 
         searchButton.addActionListener(e -> {
-            updateTripList(originCombo.getSelectedItem().toString(), destinationCombo.getSelectedItem().toString());
+            updateTripList(originCombo.getSelectedItem().toString(), destinationCombo.getSelectedItem().toString(), true);
+        });
+
+        poolButton.addActionListener(e -> {
+            long now = System.currentTimeMillis();
+            ridePool.submit(new RidePool.Request(currentUser, originCombo.getSelectedItem().toString(),
+                destinationCombo.getSelectedItem().toString(), 1, new Date(now),
+                new Date(now + TimeUnit.MINUTES.toMillis(POOL_WAIT_MINUTES)), (int) radiusSpinner.getValue()));
+            JOptionPane.showMessageDialog(this, "You will be placed on the best trip leaving in the next "
+                + POOL_WAIT_MINUTES + " minutes, if one comes up.");
         });
 
         tripList.addMouseListener(new MouseAdapter() {
@@ -591,6 +617,13 @@ public class CabSharingSystem extends JFrame {
 
 
 
+    // The fixed stops, editable so a place can also be typed as "[label@]lat/lon".
+    private static JComboBox<String> placeCombo() {
+        JComboBox<String> combo = new JComboBox<>(GeoPoint.PLACES.keySet().toArray(new String[0]));
+        combo.setEditable(true);
+        return combo;
+    }
+
     private void showBookingDialog(Trip trip) {
         JDialog bookingDialog = new JDialog(this, "Book Trip", true);
         bookingDialog.setLayout(new GridLayout(4, 2));
@@ -618,18 +651,27 @@ public class CabSharingSystem extends JFrame {
         bookButton.addActionListener(e -> {
             int seats = (int) seatsSpinner.getValue();
             String pickupPoint = pickupPointField.getText();
+            GeoPoint pickup = GeoPoint.of(pickupPoint);
+            int radius = radiusSpinner == null ? 0 : (int) radiusSpinner.getValue();
+            double offRoute = pickup == null || trip.originPoint == null || trip.destinationPoint == null
+                ? 0 : pickup.metersToSegment(trip.originPoint, trip.destinationPoint);
             if (pickupPoint.isEmpty()) {
                 JOptionPane.showMessageDialog(bookingDialog, "Please enter a pickup point");
+            } else if (radius > 0 && offRoute > radius) {
+                JOptionPane.showMessageDialog(bookingDialog,
+                    String.format("The pickup point is %.0f m from this trip's route", offRoute));
             } else {
-                if (trip.bookSeats(seats, currentUser)) {
-                    tripMap.put(trip.id, trip);
-                    saveTrips();
-                    JOptionPane.showMessageDialog(bookingDialog, "Booking successful!\nTotal Price: $" + (seats * trip.pricePerPassenger));
-                    bookingDialog.dispose();
-                    showPassengerWaitingScreen(trip);
-                } else {
-                    JOptionPane.showMessageDialog(bookingDialog, "Not enough seats available");
-                }
+                User rider = currentUser;
+                inBackground(bookButton, () -> engine.bookSeats(trip.id, rider, seats), booked -> {
+                    if (booked) {
+                        warnIfNotSaved();
+                        JOptionPane.showMessageDialog(bookingDialog, "Booking successful!\nTotal Price: $" + (seats * trip.pricePerPassenger));
+                        bookingDialog.dispose();
+                        showPassengerWaitingScreen(trip);
+                    } else {
+                        JOptionPane.showMessageDialog(bookingDialog, "Not enough seats available");
+                    }
+                });
             }
         });
 
@@ -640,108 +682,20 @@ public class CabSharingSystem extends JFrame {
 
 
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(CabSharingSystem::new);
-
-    }
-}
-
-class User {
-    String name;
-    String username;
-    String password;
-    String role;
-    String phone;
-
-    public User(String name, String username, String password, String role, String phone) {
-        this.name = name;
-        this.username = username;
-        this.password = password;
-        this.role = role;
-        this.phone = phone;
-    }
-
-    @Override
-    public String toString() {
-        return name + " (" + phone + ")";
-    }
-}
-
-class Trip {
-    String id; // Add this line
-    User host;
-    String origin;
-    String destination;
-    Date departureTime;
-    Date arrivalTime;
-    int maxPassengers;
-    double pricePerPassenger;
-    Map<User, Integer> passengers = new ConcurrentHashMap<>();
-    boolean isStarted = false;
-
-    public Trip(User host, String origin, String destination, Date departureTime, Date arrivalTime, int maxPassengers, double pricePerPassenger) {
-        this.id = UUID.randomUUID().toString(); // Add this line
-        this.host = host;
-        this.origin = origin;
-        this.destination = destination;
-        this.departureTime = departureTime;
-        this.arrivalTime = arrivalTime;
-        this.maxPassengers = maxPassengers;
-        this.pricePerPassenger = pricePerPassenger;
-    }
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        Trip trip = (Trip) o;
-        return id.equals(trip.id);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(id);
-    }
-
-
-
-    public synchronized boolean bookSeats(int seats, User user) {
-        if (getAvailableSeats() >= seats) {
-            passengers.put(user, passengers.getOrDefault(user, 0) + seats);
-            return true;
+    // java CabSharingSystem                       standalone, on the files in this directory
+    // java CabSharingSystem --server [port] [dir]  headless TripServer over those files
+    // java -Dcab.server=[host:]port CabSharingSystem  thin client of a running TripServer
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--server")) {
+            TripServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
         }
-        return false;
-    }
-
-    public synchronized int getAvailableSeats() {
-        int bookedSeats = passengers.values().stream().mapToInt(Integer::intValue).sum();
-        return maxPassengers - bookedSeats;
-    }
-
-
-    public synchronized boolean isFull() {
-        boolean full = getAvailableSeats() == 0;
-        if (full) {
-            System.out.println("Trip " + id + " is now full!");
+        String server = System.getProperty("cab.server");
+        if (server != null) {
+            SwingUtilities.invokeLater(() -> new CabSharingSystem(RemoteRideMatchingEngine.connect(server)));
+            return;
         }
-        return full;
-    }
-
-
-    public void startRide() {
-        this.isStarted = true;
-    }
-
-
-
-    public double calculateTotalFare() {
-        return passengers.values().stream().mapToInt(Integer::intValue).sum() * pricePerPassenger;
-    }
-
+        SwingUtilities.invokeLater(CabSharingSystem::new);
 
-    @Override
-    public String toString() {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
-        return String.format("From %s to %s, Departure: %s, Arrival: %s, Host: %s, Available Seats: %d, Price: $%.2f",
-                origin, destination, sdf.format(departureTime), sdf.format(arrivalTime), host, getAvailableSeats(), pricePerPassenger);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Streaming reader for the comma-separated flat files (users.txt, trips.txt and the trip
+// journal). The file is memory-mapped a window at a time and each line is split in place
+// into field offsets; numbers are parsed straight from the bytes, and short repeated
+// values such as locations and usernames are interned, so reading a line allocates
+// nothing beyond the values the caller keeps.
+//
+// Typical use:
+//   try (FileChannel ch = FileChannel.open(path)) {
+//       CsvRecordReader reader = new CsvRecordReader(ch, 0, false);
+//       while (reader.next()) { ... reader.parseLong(4) ... }
+//   }
+//
+// Files that another process may truncate underneath us (the journal) should be read
+// into a heap buffer and wrapped instead of mapped: touching a mapping past the end of a
+// truncated file kills the JVM.
+class CsvRecordReader {
+    private static final long WINDOW = 64L * 1024 * 1024;
+    private static final double[] POW10 = new double[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final boolean requireNewline;
+    private final Interner interner = new Interner();
+
+    private ByteBuffer window;
+    private long windowStart;
+    private int recordEnd; // offset in window just past the current record's newline
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int fields;
+    private byte[] scratch = new byte[256];
+
+    // Reads the channel from the given offset. With requireNewline set, a trailing line
+    // without '\n' (a write still in progress) is left unread; position() then points
+    // at its start.
+    CsvRecordReader(FileChannel channel, long from, boolean requireNewline) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.requireNewline = requireNewline;
+        map(from);
+    }
+
+    // Reads records from an in-memory buffer whose first byte sits at baseOffset in the
+    // file, so position() still reports file offsets.
+    CsvRecordReader(ByteBuffer buffer, long baseOffset, boolean requireNewline) {
+        this.channel = null;
+        this.size = baseOffset + buffer.limit();
+        this.requireNewline = requireNewline;
+        this.window = buffer;
+        this.windowStart = baseOffset;
+    }
+
+    static CsvRecordReader open(FileChannel channel) throws IOException {
+        return new CsvRecordReader(channel, 0, false);
+    }
+
+    // Advances to the next non-empty line. Returns false at the end of the file.
+    boolean next() throws IOException {
+        while (true) {
+            int start = recordEnd;
+            int limit = window.limit();
+            int i = start;
+            while (i < limit && window.get(i) != '\n') {
+                i++;
+            }
+            if (i == limit) {
+                boolean atEof = windowStart + limit >= size;
+                if (!atEof && start > 0) {
+                    map(windowStart + start);
+                    continue;
+                }
+                if (!atEof) {
+                    throw new IOException("Line longer than " + WINDOW + " bytes at offset " + windowStart);
+                }
+                if (start == limit || requireNewline) {
+                    return false;
+                }
+            }
+            recordEnd = Math.min(i + 1, limit);
+            int end = i > start && window.get(i - 1) == '\r' ? i - 1 : i;
+            if (end > start) {
+                split(start, end);
+                return true;
+            }
+        }
+    }
+
+    // File offset just past the current record, i.e. where the next read would begin.
+    long position() {
+        return windowStart + recordEnd;
+    }
+
+    int fields() {
+        return fields;
+    }
+
+    int length(int field) {
+        return ends[field] - starts[field];
+    }
+
+    String string(int field) {
+        int length = length(field);
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        window.get(starts[field], scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Like string(), but returns the same String instance every time the same bytes are
+    // seen, without allocating once the value is known.
+    String intern(int field) {
+        return interner.intern(this, starts[field], ends[field]);
+    }
+
+    boolean is(int field, String ascii) {
+        int start = starts[field];
+        if (ends[field] - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (window.get(start + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long parseLong(int field) {
+        int i = starts[field];
+        int end = ends[field];
+        boolean negative = i < end && window.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Empty number in field " + field);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = window.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + string(field) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    int parseInt(int field) {
+        return Math.toIntExact(parseLong(field));
+    }
+
+    boolean parseBoolean(int field) {
+        return length(field) == 4 && string4Equals(starts[field], "true");
+    }
+
+    // Plain decimals such as "12.5" are parsed in place: with at most 15 significant
+    // digits both the mantissa and the power of ten are exact doubles, so a single
+    // division is correctly rounded. Anything else goes through Double.parseDouble.
+    double parseDouble(int field) {
+        int i = starts[field];
+        int end = ends[field];
+        boolean negative = i < end && window.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < end; i++) {
+            byte b = window.get(i);
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            if (b < '0' || b > '9' || digits >= 15) {
+                return Double.parseDouble(string(field));
+            }
+            mantissa = mantissa * 10 + (b - '0');
+            digits++;
+            if (fraction >= 0) {
+                fraction++;
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(string(field));
+        }
+        double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private boolean string4Equals(int start, String ascii) {
+        for (int i = 0; i < 4; i++) {
+            byte b = window.get(start + i);
+            if ((b | 0x20) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void split(int start, int end) {
+        fields = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || window.get(i) == ',') {
+                if (fields == starts.length) {
+                    starts = Arrays.copyOf(starts, fields * 2);
+                    ends = Arrays.copyOf(ends, fields * 2);
+                }
+                starts[fields] = fieldStart;
+                ends[fields] = i;
+                fields++;
+                fieldStart = i + 1;
+            }
+        }
+    }
+
+    private void map(long from) throws IOException {
+        windowStart = from;
+        long length = Math.min(WINDOW, size - from);
+        if (length <= 0) {
+            window = ByteBuffer.allocate(0);
+        } else {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            window = mapped;
+        }
+        recordEnd = 0;
+    }
+
+    // Small open-addressing table from byte sequences to canonical Strings. It stops
+    // taking new entries once full, after which unseen values are simply allocated.
+    private static final class Interner {
+        private static final int CAPACITY = 8192;
+
+        private final byte[][] keys = new byte[CAPACITY][];
+        private final String[] values = new String[CAPACITY];
+        private int count;
+
+        String intern(CsvRecordReader reader, int start, int end) {
+            ByteBuffer window = reader.window;
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + window.get(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+            while (keys[slot] != null) {
+                if (matches(keys[slot], window, start, end)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            byte[] key = new byte[end - start];
+            window.get(start, key);
+            String value = new String(key, StandardCharsets.UTF_8);
+            if (count < CAPACITY * 3 / 4) {
+                keys[slot] = key;
+                values[slot] = value;
+                count++;
+            }
+            return value;
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer window, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != window.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
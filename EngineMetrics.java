@@ -0,0 +1,126 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+// Counters and latency histograms for the engine's hot paths, plus gauges read from the
+// route index and surge pricing. Available over JMX (CabSharingSystem:type=EngineMetrics) and as plain
+// text through dump().
+class EngineMetrics implements EngineMetricsMXBean {
+    final LatencyHistogram search = new LatencyHistogram();
+    final LatencyHistogram book = new LatencyHistogram();
+    final LatencyHistogram bookAll = new LatencyHistogram();
+    final LatencyHistogram post = new LatencyHistogram();
+    final LatencyHistogram startRide = new LatencyHistogram();
+    final LatencyHistogram load = new LatencyHistogram();
+    final LatencyHistogram save = new LatencyHistogram();
+    final LongAdder bookRejected = new LongAdder();
+    final LongAdder archived = new LongAdder();
+
+    private final RouteIndex routes;
+    private final SurgePricing surge;
+    private ObjectName registeredAs;
+
+    EngineMetrics(RouteIndex routes, SurgePricing surge) {
+        this.routes = routes;
+        this.surge = surge;
+    }
+
+    private Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> all = new LinkedHashMap<>();
+        all.put("search", search);
+        all.put("book", book);
+        all.put("bookAll", bookAll);
+        all.put("post", post);
+        all.put("startRide", startRide);
+        all.put("load", load);
+        all.put("save", save);
+        return all;
+    }
+
+    @Override
+    public Map<String, String> getLatencies() {
+        Map<String, String> latencies = new LinkedHashMap<>();
+        histograms().forEach((name, histogram) -> latencies.put(name, histogram.summary()));
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        histograms().forEach((name, histogram) -> counters.put(name, histogram.count()));
+        counters.put("bookRejected", bookRejected.sum());
+        counters.put("archived", archived.sum());
+        return counters;
+    }
+
+    @Override
+    public int getOpenTrips() {
+        return routes.openTrips();
+    }
+
+    @Override
+    public Map<String, Integer> getOpenSeatsByRoute() {
+        return routes.openSeatsByRoute();
+    }
+
+    @Override
+    public Map<String, String> getRouteStats() {
+        Map<String, String> stats = new TreeMap<>();
+        routes.routeStats().forEach((route, totals) -> {
+            if (totals.openTrips > 0) {
+                stats.put(route, totals.toString());
+            }
+        });
+        return stats;
+    }
+
+    @Override
+    public Map<String, String> getDemandByRoute() {
+        Map<String, String> demand = new TreeMap<>();
+        surge.demandByRoute().forEach((route, current) -> demand.put(route, current.toString()));
+        return demand;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        getLatencies().forEach((name, summary) -> out.append(String.format("%-10s %s%n", name, summary)));
+        out.append(String.format("%-10s %d%n", "rejected", bookRejected.sum()));
+        out.append(String.format("%-10s %d%n", "archived", archived.sum()));
+        out.append(String.format("%-10s %d%n", "openTrips", getOpenTrips()));
+        getRouteStats().forEach((route, totals) -> out.append(String.format("  %-8s %s%n", route, totals)));
+        out.append("demand\n");
+        getDemandByRoute().forEach((route, demand) -> out.append(String.format("  %-8s %s%n", route, demand)));
+        return out.toString();
+    }
+
+    @Override
+    public void reset() {
+        histograms().values().forEach(LatencyHistogram::reset);
+        bookRejected.reset();
+        archived.reset();
+    }
+
+    void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("CabSharingSystem:type=EngineMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredAs = objectName;
+        } catch (JMException e) {
+            Log.warn(() -> "Engine metrics not registered with JMX: " + e);
+        }
+    }
+
+    void unregister() {
+        if (registeredAs == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+        } catch (JMException e) {
+            Log.warn(() -> "Engine metrics not unregistered from JMX: " + e);
+        }
+        registeredAs = null;
+    }
+}
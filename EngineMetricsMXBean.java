@@ -0,0 +1,24 @@
+import java.util.Map;
+
+// JMX view of EngineMetrics. Latencies are summaries in the form produced by
+// LatencyHistogram.summary(), keyed by operation.
+public interface EngineMetricsMXBean {
+    Map<String, String> getLatencies();
+
+    Map<String, Long> getCounters();
+
+    int getOpenTrips();
+
+    Map<String, Integer> getOpenSeatsByRoute();
+
+    // Open trips, open seats and mean price per route, as RouteIndex.RouteStats text.
+    Map<String, String> getRouteStats();
+
+    // Searches, booked seats, open seats and surge multiplier per route over the surge
+    // window, as SurgePricing.RouteDemand text.
+    Map<String, String> getDemandByRoute();
+
+    String dump();
+
+    void reset();
+}
@@ -0,0 +1,274 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Secondary index over tripMap for matching by position: which trips pass close to a
+// rider's pickup and drop-off. Kept current from the TripChangeFeed like RouteIndex.
+//
+// A trip's route is taken as the straight line from its origin to its destination. The
+// map is cut into square cells of CELL_METERS (measured north-south) and every trip is
+// listed under each cell its route crosses. A query looks only at the cells within the
+// radius of the pickup or of the drop-off, whichever hold fewer trips, and checks those
+// trips exactly, so its cost follows the trips near the rider rather than the total.
+//
+// Each cell also keeps its trips' end points packed in one array, rebuilt by the first
+// query after the cell changes, so a query scans candidates without chasing a pointer
+// per trip. Cells change only when a trip is posted, started or removed.
+//
+// Only trips whose origin and destination both name a point (see GeoPoint) and that have
+// not started are indexed. postTrip() refuses trips longer than MAX_TRIP_METERS; a longer
+// one already on file, or a route crossing more than MAX_ROUTE_CELLS cells, is listed
+// under its two end cells only, so it is found from near its ends but not along the way.
+class GeoIndex implements TripChangeFeed.Listener {
+    static final double CELL_METERS = Double.parseDouble(System.getProperty("cab.geo.cellMeters", "500"));
+    static final double MAX_TRIP_METERS = Double.parseDouble(System.getProperty("cab.geo.maxTripMeters", "200000"));
+    static final int MAX_ROUTE_CELLS = Integer.getInteger("cab.geo.maxRouteCells", 4096);
+
+    private final double cellDegrees = Math.max(CELL_METERS, 1) / GeoPoint.METERS_PER_DEGREE;
+    private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+
+    // The trips crossing one cell. `changes` is bumped after every add or remove; a
+    // packed copy is only used while it matches.
+    private static final class Cell {
+        final Set<Trip> trips = ConcurrentHashMap.newKeySet();
+        final AtomicInteger changes = new AtomicInteger();
+        volatile Packed packed;
+
+        Packed packed() {
+            int seen = changes.get();
+            Packed p = packed;
+            if (p == null || p.changes != seen) {
+                p = new Packed(trips, seen);
+                packed = p;
+            }
+            return p;
+        }
+    }
+
+    // A cell's trips with their end points as (fromLat, fromLon, toLat, toLon) runs.
+    private static final class Packed {
+        final int changes;
+        final Trip[] trips;
+        final double[] ends;
+
+        Packed(Set<Trip> set, int changes) {
+            this.changes = changes;
+            this.trips = set.toArray(new Trip[0]);
+            this.ends = new double[trips.length * 4];
+            for (int i = 0; i < trips.length; i++) {
+                ends[4 * i] = trips[i].originPoint.lat;
+                ends[4 * i + 1] = trips[i].originPoint.lon;
+                ends[4 * i + 2] = trips[i].destinationPoint.lat;
+                ends[4 * i + 3] = trips[i].destinationPoint.lon;
+            }
+        }
+    }
+
+    void rebuild(Collection<Trip> trips) {
+        cells.clear();
+        for (Trip trip : trips) {
+            update(trip);
+        }
+    }
+
+    void update(Trip trip) {
+        if (trip.isStarted) {
+            remove(trip);
+        } else if (trip.originPoint != null && trip.destinationPoint != null) {
+            for (long key : route(trip)) {
+                cells.compute(key, (k, cell) -> {
+                    cell = cell == null ? new Cell() : cell;
+                    if (cell.trips.add(trip)) {
+                        cell.changes.incrementAndGet();
+                    }
+                    return cell;
+                });
+            }
+        }
+    }
+
+    void remove(Trip trip) {
+        if (trip.originPoint == null || trip.destinationPoint == null) {
+            return;
+        }
+        for (long key : route(trip)) {
+            cells.computeIfPresent(key, (k, cell) -> {
+                if (cell.trips.remove(trip)) {
+                    cell.changes.incrementAndGet();
+                }
+                return cell.trips.isEmpty() ? null : cell;
+            });
+        }
+    }
+
+    @Override
+    public void tripChanged(TripChangeFeed.TripChange change) {
+        if (change.type == TripChangeFeed.Type.REMOVED) {
+            remove(change.trip);
+        } else if (change.type != TripChangeFeed.Type.BOOKED) {
+            update(change.trip);
+        }
+    }
+
+    // Bookable trips whose route passes within radiusMeters of both the pickup and the
+    // drop-off, reaching the pickup first; earliest departure first.
+    List<Trip> near(GeoPoint pickup, GeoPoint dropoff, double radiusMeters) {
+        List<Cell> atPickup = around(pickup, radiusMeters);
+        List<Cell> atDropoff = around(dropoff, radiusMeters);
+        boolean fromPickup = size(atPickup) <= size(atDropoff);
+        Probe probe = new Probe(pickup, dropoff, radiusMeters, fromPickup ? pickup : dropoff);
+        Set<Trip> found = new HashSet<>();
+        for (Cell cell : fromPickup ? atPickup : atDropoff) {
+            Packed packed = cell.packed();
+            double[] ends = packed.ends;
+            for (int i = 0; i < packed.trips.length; i++) {
+                if (probe.passes(ends[4 * i], ends[4 * i + 1], ends[4 * i + 2], ends[4 * i + 3])) {
+                    Trip trip = packed.trips[i];
+                    if (!trip.isStarted && !trip.isFull()) {
+                        found.add(trip);
+                    }
+                }
+            }
+        }
+        List<Trip> result = new ArrayList<>(found);
+        result.sort(Comparator.comparing((Trip trip) -> trip.departureTime).thenComparing(trip -> trip.id));
+        return result;
+    }
+
+    // The test near() applies to each candidate trip.
+    static boolean passes(Trip trip, GeoPoint pickup, GeoPoint dropoff, double radiusMeters) {
+        GeoPoint from = trip.originPoint;
+        GeoPoint to = trip.destinationPoint;
+        return from != null && to != null
+            && new Probe(pickup, dropoff, radiusMeters, pickup).passes(from.lat, from.lon, to.lat, to.lon);
+    }
+
+    // One query's pickup and drop-off on a flat projection around the pickup, in degrees
+    // of latitude, so that testing a trip costs a few multiplications and no trigonometry.
+    // Trips whose bounding box is further than the radius from `first` are rejected
+    // before any distance is computed.
+    private static final class Probe {
+        final double scale;
+        final double px, py, dx, dy;
+        final double radius;
+        final double radiusSquared;
+        final double firstLat, firstLon, lonRadius;
+
+        Probe(GeoPoint pickup, GeoPoint dropoff, double radiusMeters, GeoPoint first) {
+            scale = Math.cos(Math.toRadians(pickup.lat));
+            px = pickup.lon * scale;
+            py = pickup.lat;
+            dx = dropoff.lon * scale;
+            dy = dropoff.lat;
+            radius = radiusMeters / GeoPoint.METERS_PER_DEGREE;
+            radiusSquared = radius * radius;
+            firstLat = first.lat;
+            firstLon = first.lon;
+            lonRadius = radius / Math.max(scale, 1e-6);
+        }
+
+        boolean passes(double fromLat, double fromLon, double toLat, double toLon) {
+            if (firstLat < Math.min(fromLat, toLat) - radius || firstLat > Math.max(fromLat, toLat) + radius
+                    || firstLon < Math.min(fromLon, toLon) - lonRadius || firstLon > Math.max(fromLon, toLon) + lonRadius) {
+                return false;
+            }
+            double ax = fromLon * scale;
+            double bx = toLon * scale - ax;
+            double by = toLat - fromLat;
+            double length = bx * bx + by * by;
+            double pickupAlong = along(px - ax, py - fromLat, bx, by, length);
+            if (distanceSquared(px - ax, py - fromLat, bx, by, pickupAlong) > radiusSquared) {
+                return false;
+            }
+            double dropoffAlong = along(dx - ax, dy - fromLat, bx, by, length);
+            return pickupAlong <= dropoffAlong
+                && distanceSquared(dx - ax, dy - fromLat, bx, by, dropoffAlong) <= radiusSquared;
+        }
+
+        // Position of point (x, y) projected onto the segment from the origin to (bx, by),
+        // clamped to [0, 1].
+        private static double along(double x, double y, double bx, double by, double length) {
+            return length == 0 ? 0 : Math.max(0, Math.min(1, (x * bx + y * by) / length));
+        }
+
+        private static double distanceSquared(double x, double y, double bx, double by, double t) {
+            double ex = x - t * bx;
+            double ey = y - t * by;
+            return ex * ex + ey * ey;
+        }
+    }
+
+    // The cells overlapping the square of side 2 * radiusMeters around p.
+    private List<Cell> around(GeoPoint p, double radiusMeters) {
+        double dLat = radiusMeters / GeoPoint.METERS_PER_DEGREE;
+        double dLon = dLat / Math.max(Math.cos(Math.toRadians(p.lat)), 1e-6);
+        long u0 = (long) Math.floor((p.lon - dLon) / cellDegrees);
+        long u1 = (long) Math.floor((p.lon + dLon) / cellDegrees);
+        long v0 = (long) Math.floor((p.lat - dLat) / cellDegrees);
+        long v1 = (long) Math.floor((p.lat + dLat) / cellDegrees);
+        List<Cell> found = new ArrayList<>();
+        for (long v = v0; v <= v1; v++) {
+            for (long u = u0; u <= u1; u++) {
+                Cell cell = cells.get(key(u, v));
+                if (cell != null) {
+                    found.add(cell);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Whether a trip between these points is short enough to post. Places without a
+    // position are not limited.
+    static boolean withinReach(GeoPoint origin, GeoPoint destination) {
+        return origin == null || destination == null || origin.metersTo(destination) <= MAX_TRIP_METERS;
+    }
+
+    // Every cell the straight route from origin to destination crosses, walking the
+    // grid one cell boundary at a time (Amanatides and Woo), or just its end cells if
+    // that is more than MAX_ROUTE_CELLS.
+    private long[] route(Trip trip) {
+        double u0 = trip.originPoint.lon / cellDegrees;
+        double v0 = trip.originPoint.lat / cellDegrees;
+        double u1 = trip.destinationPoint.lon / cellDegrees;
+        double v1 = trip.destinationPoint.lat / cellDegrees;
+        long u = (long) Math.floor(u0);
+        long v = (long) Math.floor(v0);
+        long cellsCrossed = Math.abs((long) Math.floor(u1) - u) + Math.abs((long) Math.floor(v1) - v) + 1;
+        if (cellsCrossed > MAX_ROUTE_CELLS) {
+            return new long[] {key(u, v), key((long) Math.floor(u1), (long) Math.floor(v1))};
+        }
+        int steps = (int) cellsCrossed - 1;
+        double du = Math.abs(u1 - u0);
+        double dv = Math.abs(v1 - v0);
+        int stepU = u1 > u0 ? 1 : -1;
+        int stepV = v1 > v0 ? 1 : -1;
+        double nextU = du == 0 ? Double.POSITIVE_INFINITY : (stepU > 0 ? u + 1 - u0 : u0 - u) / du;
+        double nextV = dv == 0 ? Double.POSITIVE_INFINITY : (stepV > 0 ? v + 1 - v0 : v0 - v) / dv;
+        long[] route = new long[steps + 1];
+        route[0] = key(u, v);
+        for (int i = 1; i <= steps; i++) {
+            if (nextU < nextV) {
+                u += stepU;
+                nextU += 1 / du;
+            } else {
+                v += stepV;
+                nextV += 1 / dv;
+            }
+            route[i] = key(u, v);
+        }
+        return route;
+    }
+
+    private static long key(long u, long v) {
+        return (v << 32) ^ (u & 0xffffffffL);
+    }
+
+    private static int size(List<Cell> cells) {
+        int size = 0;
+        for (Cell cell : cells) {
+            size += cell.trips.size();
+        }
+        return size;
+    }
+}
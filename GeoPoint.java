@@ -0,0 +1,104 @@
+import java.util.*;
+
+// A position on the map. Trip origins and destinations stay plain strings in every file
+// and wire format; a string names a point if it is one of the stops in PLACES or is
+// written as "[label@]lat/lon" in decimal degrees, e.g. "Main Gate@52.51630/13.37770".
+// Strings that are neither (old trips, free text) simply have no position.
+//
+// Distances use a flat projection around the point measured from, which is accurate to
+// well under a meter across a city and good enough for ranking trips anywhere.
+final class GeoPoint {
+    static final double METERS_PER_DEGREE = 111_195;
+
+    // The fixed stops the UI has always offered.
+    static final Map<String, GeoPoint> PLACES;
+    static {
+        Map<String, GeoPoint> places = new LinkedHashMap<>();
+        places.put("A", new GeoPoint(52.52000, 13.40500));
+        places.put("B", new GeoPoint(52.54500, 13.36000));
+        places.put("C", new GeoPoint(52.49000, 13.44000));
+        PLACES = Collections.unmodifiableMap(places);
+    }
+
+    final double lat;
+    final double lon;
+
+    GeoPoint(double lat, double lon) {
+        this.lat = lat;
+        this.lon = lon;
+    }
+
+    // The point a place string names, or null if it names none.
+    static GeoPoint of(String place) {
+        if (place == null) {
+            return null;
+        }
+        GeoPoint known = PLACES.get(place);
+        if (known != null) {
+            return known;
+        }
+        int slash = place.lastIndexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        try {
+            double lat = Double.parseDouble(place.substring(place.lastIndexOf('@', slash) + 1, slash));
+            double lon = Double.parseDouble(place.substring(slash + 1));
+            return Math.abs(lat) <= 90 && Math.abs(lon) <= 180 ? new GeoPoint(lat, lon) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Whether a new trip may use this place: any non-blank name without a ',' or a line
+    // break, which would split its record in trips.txt, the journal or the server
+    // protocol, none of which quote their fields. Names without a position are still
+    // routes for search() and surge pricing.
+    static boolean isValidPlace(String place) {
+        return place != null && !place.trim().isEmpty()
+            && place.indexOf(',') < 0 && place.indexOf('\n') < 0 && place.indexOf('\r') < 0;
+    }
+
+    double metersTo(GeoPoint other) {
+        double dx = (other.lon - lon) * METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double dy = (other.lat - lat) * METERS_PER_DEGREE;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Distance in meters from this point to the nearest point of the segment a-b.
+    double metersToSegment(GeoPoint a, GeoPoint b) {
+        double scale = Math.cos(Math.toRadians(lat));
+        double ax = (a.lon - lon) * scale;
+        double ay = a.lat - lat;
+        double bx = (b.lon - lon) * scale;
+        double by = b.lat - lat;
+        double t = along(ax, ay, bx, by);
+        double x = ax + t * (bx - ax);
+        double y = ay + t * (by - ay);
+        return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+    }
+
+    // Projection of the origin onto segment (ax, ay)-(bx, by), clamped to it.
+    private static double along(double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double length = dx * dx + dy * dy;
+        return length == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / length));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GeoPoint && lat == ((GeoPoint) o).lat && lon == ((GeoPoint) o).lon;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(lat, lon);
+    }
+
+    // The place string for this point, as of() reads it.
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%.5f/%.5f", lat, lon);
+    }
+}
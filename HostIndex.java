@@ -0,0 +1,62 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Secondary index over tripMap from host username to that host's trips which have not
+// started yet, kept current from the TripChangeFeed like RouteIndex. Keyed by username
+// rather than by User object, so it stays correct when users are reloaded and when a
+// client holds its own copy of the User.
+class HostIndex implements TripChangeFeed.Listener {
+    private final Map<String, Set<Trip>> hosts = new ConcurrentHashMap<>();
+
+    void rebuild(Collection<Trip> trips) {
+        hosts.clear();
+        for (Trip trip : trips) {
+            update(trip);
+        }
+    }
+
+    void update(Trip trip) {
+        if (trip.isStarted) {
+            remove(trip);
+        } else {
+            // Added inside compute() so that a remove() emptying the set cannot drop it in between
+            hosts.compute(trip.host.username, (k, trips) -> {
+                trips = trips == null ? ConcurrentHashMap.newKeySet() : trips;
+                trips.add(trip);
+                return trips;
+            });
+        }
+    }
+
+    void remove(Trip trip) {
+        hosts.computeIfPresent(trip.host.username, (k, trips) -> {
+            trips.remove(trip);
+            return trips.isEmpty() ? null : trips;
+        });
+    }
+
+    @Override
+    public void tripChanged(TripChangeFeed.TripChange change) {
+        if (change.type == TripChangeFeed.Type.REMOVED) {
+            remove(change.trip);
+        } else {
+            update(change.trip);
+        }
+    }
+
+    // The host's trips that have not started, earliest departure first.
+    List<Trip> trips(String username) {
+        Set<Trip> trips = hosts.get(username);
+        if (trips == null) {
+            return Collections.emptyList();
+        }
+        List<Trip> result = new ArrayList<>();
+        for (Trip trip : trips) {
+            if (!trip.isStarted) {
+                result.add(trip);
+            }
+        }
+        result.sort(Comparator.comparing(trip -> trip.departureTime));
+        return result;
+    }
+}
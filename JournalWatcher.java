@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+
+// Cross-process change notification for the files in one store directory. Another
+// process appending to a trip journal shows up here as a file system event, and the
+// callback (normally the engine's refresh) runs straight away instead of waiting for
+// the next poll. Events that pile up while the callback runs are folded into a single
+// extra call.
+//
+// Where the platform has no native file watching, WatchService falls back to polling
+// the directory itself, so this only ever makes changes arrive sooner.
+class JournalWatcher implements AutoCloseable {
+    // -Dcab.watch=false turns file watching off; other processes are then only
+    // picked up by explicit refresh() calls
+    static final boolean ENABLED = !"false".equals(System.getProperty("cab.watch"));
+
+    private final WatchService watcher;
+    private final Set<Path> files;
+    private final Runnable onChange;
+    private final Thread thread;
+
+    JournalWatcher(Path directory, Set<String> fileNames, Runnable onChange) throws IOException {
+        Path dir = directory.toAbsolutePath();
+        this.watcher = dir.getFileSystem().newWatchService();
+        this.files = new HashSet<>();
+        for (String name : fileNames) {
+            files.add(Paths.get(name));
+        }
+        this.onChange = onChange;
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::run, "journal-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || files.contains(event.context());
+                    }
+                    if (!key.reset()) {
+                        return;
+                    }
+                } while ((key = watcher.poll()) != null);
+                if (changed) {
+                    try {
+                        onChange.run();
+                    } catch (RuntimeException e) {
+                        Log.warn(() -> "Handling a change to the trip store failed: " + e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
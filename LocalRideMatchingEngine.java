@@ -0,0 +1,576 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// RideMatchingEngine over the flat files in one directory: users.txt, read through the
+// UserStore index, and the trip store split into TripShards by route, each a snapshot
+// plus its journal. Any number of threads may share one instance; other processes using
+// the same directory are picked up through refresh(), which a JournalWatcher calls as
+// soon as their writes land in the directory. New trips and users are persisted
+// write-behind; sync() reports durability.
+//
+// Changes to an existing trip (booking, cancelling, starting) are transactions across
+// processes: under the trip's StoreLocks stripe we catch up on the journal, check the
+// change against the latest state, and wait for its journal line to be written before
+// letting go. Two processes can therefore never both sell the last seat, and trips in
+// different stripes do not wait for each other.
+//
+// Trips that arrived long ago are moved to their shard's archive by a background check
+// that compacts a shard whenever one of its TripArchive buckets falls due.
+//
+// Searches go through RouteIndex, HostIndex and GeoIndex, which cover every shard and
+// are already partitioned by route and host, so the shard layout is invisible to them.
+// Route searches and bookings are also counted by SurgePricing.
+class LocalRideMatchingEngine implements RideMatchingEngine {
+    static final String USER_FILE = "users.txt";
+    static final String TRIP_FILE = "trips.txt";
+    static final String TRIP_JOURNAL_FILE = "trips.journal";
+    static final String TRIP_SNAPSHOT_FILE = "trips.bin";
+    static final String LOCK_FILE = "trips.lock";
+    static final String ARCHIVE_FILE = "trips.archive";
+    // -Dcab.snapshot.format=binary keeps the snapshot in trips.bin instead of trips.txt
+    static final boolean BINARY_SNAPSHOT = "binary".equals(System.getProperty("cab.snapshot.format"));
+    static final int SHARDS = Integer.getInteger("cab.store.shards", 8);
+
+    private final StoreLocks locks;
+    private final UserStore users;
+    private final TripShard[] shards;
+    private final TripChangeFeed feed = new TripChangeFeed();
+    private final RouteIndex routeIndex = new RouteIndex();
+    private final HostIndex hostIndex = new HostIndex();
+    private final GeoIndex geoIndex = new GeoIndex();
+    private final SurgePricing surge = new SurgePricing(routeIndex);
+    private final ScheduledExecutorService archiver;
+    private final WriteBehindQueue<User> userWrites;
+    private final EngineMetrics metrics = new EngineMetrics(routeIndex, surge);
+    private final JournalWatcher watcher;
+
+    LocalRideMatchingEngine() {
+        this(Paths.get(""));
+    }
+
+    LocalRideMatchingEngine(Path directory) {
+        locks = openLocks(directory.resolve(LOCK_FILE));
+        users = openUsers(directory.resolve(USER_FILE), locks);
+        shards = new TripShard[TripShard.count(directory, SHARDS)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new TripShard(i, directory, locks);
+        }
+        userWrites = new WriteBehindQueue<>("users", TripJournal.QUEUE_CAPACITY, users::save);
+        loadTrips();
+        feed.addListener(routeIndex);
+        feed.addListener(hostIndex);
+        feed.addListener(geoIndex);
+        for (TripShard shard : shards) {
+            shard.archive.rebuild(shard.trips.values());
+            feed.addListener(shard);
+            shard.journal.setCompactor(() -> saveTrips(shard));
+        }
+        archiver = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "trip-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long every = Math.min(shards[0].archive.bucketMillis(), 60_000);
+        archiver.scheduleWithFixedDelay(this::archiveDue, 0, every, TimeUnit.MILLISECONDS);
+        metrics.register(directory.toAbsolutePath().toString());
+        watcher = JournalWatcher.ENABLED ? watch(directory) : null;
+    }
+
+    @Override
+    public User login(String username, String password) {
+        return users.login(username, password);
+    }
+
+    @Override
+    public User signUp(String name, String username, String password, String role, String phone) {
+        if (password == null || !UserStore.isValidField(name) || !UserStore.isValidField(username)
+                || !UserStore.isValidField(role) || !UserStore.isValidField(phone)) {
+            return null;
+        }
+        User user = new User(name, username, UserStore.hash(password), role, phone);
+        if (!users.add(user)) {
+            return null;
+        }
+        // Waits for the write: another process may take the name before it lands
+        try {
+            userWrites.submit(user).join();
+        } catch (CompletionException e) {
+            Log.warn(() -> "Could not save user " + username + ": " + e.getCause());
+            return null;
+        }
+        return users.saved(user) ? user : null;
+    }
+
+    @Override
+    public Trip postTrip(User host, String origin, String destination, Date departureTime, Date arrivalTime,
+                         int maxPassengers, double pricePerPassenger) {
+        if (host == null || maxPassengers < 1 || !GeoPoint.isValidPlace(origin) || !GeoPoint.isValidPlace(destination)
+                || !GeoIndex.withinReach(GeoPoint.of(origin), GeoPoint.of(destination))) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Trip trip = new Trip(host, origin, destination, departureTime, arrivalTime, maxPassengers,
+            surge.price(origin, destination, pricePerPassenger));
+        TripShard shard = shards[Math.floorMod(RouteIndex.routeKey(origin, destination).hashCode(), shards.length)];
+        shard.trips.put(trip.id, trip);
+        shard.journal.tripPosted(trip);
+        feed.publish(TripChangeFeed.Type.POSTED, trip);
+        metrics.post.record(System.nanoTime() - start);
+        return trip;
+    }
+
+    @Override
+    public List<Trip> search(String origin, String destination, boolean countDemand) {
+        long start = System.nanoTime();
+        List<Trip> trips = routeIndex.search(origin, destination);
+        if (countDemand) {
+            surge.searched(origin, destination);
+        }
+        metrics.search.record(System.nanoTime() - start);
+        return trips;
+    }
+
+    @Override
+    public List<Trip> search(String origin, String destination, Date from, Date to, boolean countDemand) {
+        long start = System.nanoTime();
+        List<Trip> trips = routeIndex.search(origin, destination, from, to);
+        if (countDemand) {
+            surge.searched(origin, destination);
+        }
+        metrics.search.record(System.nanoTime() - start);
+        return trips;
+    }
+
+    @Override
+    public List<Trip> searchNear(GeoPoint pickup, GeoPoint dropoff, double radiusMeters) {
+        long start = System.nanoTime();
+        List<Trip> trips = geoIndex.near(pickup, dropoff, radiusMeters);
+        metrics.search.record(System.nanoTime() - start);
+        return trips;
+    }
+
+    @Override
+    public Trip getTrip(String tripId) {
+        TripShard shard = shardOf(tripId);
+        return shard == null ? null : shard.trips.get(tripId);
+    }
+
+    @Override
+    public List<Trip> pastTrips(String origin, String destination, Date from, Date to) {
+        Map<String, Trip> found = new LinkedHashMap<>();
+        try {
+            for (TripShard shard : shards) {
+                for (Trip trip : shard.archive.search(origin, destination, from, to, users::get)) {
+                    found.put(trip.id, trip);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn(() -> "Could not search the trip archive: " + e);
+            return Collections.emptyList();
+        }
+        List<Trip> trips = new ArrayList<>(found.values());
+        trips.sort(Comparator.comparing(trip -> trip.departureTime));
+        return trips;
+    }
+
+    @Override
+    public boolean bookSeats(String tripId, User user, int seats) {
+        long start = System.nanoTime();
+        TripShard shard = shardOf(tripId);
+        Trip trip = shard == null ? null : shard.trips.get(tripId);
+        if (trip == null || user == null || seats < 1 || !inTransaction(shard, trip, () -> {
+                int held = trip.passengers.getOrDefault(user, 0);
+                return !trip.isStarted && trip.bookSeats(seats, user)
+                    && written(shard.journal.seatsBooked(trip, user), () -> trip.setSeats(user, held));
+            })) {
+            metrics.bookRejected.increment();
+            return false;
+        }
+        feed.publish(TripChangeFeed.Type.BOOKED, trip);
+        surge.booked(trip.origin, trip.destination, seats);
+        if (trip.isFull()) {
+            Log.debug(() -> "Trip " + trip.id + " is now full!");
+        }
+        metrics.book.record(System.nanoTime() - start);
+        return true;
+    }
+
+    @Override
+    public List<BulkBooking.Outcome> bookAll(List<BulkBooking.Request> requests) {
+        long start = System.nanoTime();
+        BulkBooking.Outcome[] outcomes = new BulkBooking.Outcome[requests.size()];
+        Set<String> tripIds = new HashSet<>();
+        boolean valid = true;
+        for (int i = 0; i < outcomes.length; i++) {
+            BulkBooking.Request request = requests.get(i);
+            if (request.tripId == null || request.user == null || request.seats < 1) {
+                outcomes[i] = BulkBooking.Outcome.INVALID;
+                valid = false;
+            } else if (shardOf(request.tripId) == null) {
+                outcomes[i] = BulkBooking.Outcome.UNKNOWN_TRIP;
+                valid = false;
+            }
+            tripIds.add(request.tripId);
+        }
+        Map<Trip, Set<User>> booked = new LinkedHashMap<>();
+        if (valid) {
+            try {
+                StoreLocks.Action<Boolean> reserve = () -> {
+                    if (locks != null) {
+                        for (TripShard shard : shards) {
+                            if (tripIds.stream().anyMatch(shard.trips::containsKey)) {
+                                shard.journal.poll(users::get, shard.trips, feed);
+                            }
+                        }
+                    }
+                    return reserveAll(requests, outcomes, booked);
+                };
+                valid = locks == null ? reserve.run() : locks.withTrips(tripIds, reserve);
+            } catch (IOException e) {
+                Log.warn(() -> "Bulk booking failed: " + e);
+                Arrays.fill(outcomes, BulkBooking.Outcome.FAILED);
+                valid = false;
+            }
+        }
+        if (!valid) {
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] == null || outcomes[i] == BulkBooking.Outcome.BOOKED) {
+                    outcomes[i] = BulkBooking.Outcome.ABORTED;
+                }
+            }
+            metrics.bookRejected.increment();
+        } else {
+            for (Trip trip : booked.keySet()) {
+                feed.publish(TripChangeFeed.Type.BOOKED, trip);
+            }
+            for (BulkBooking.Request request : requests) {
+                Trip trip = getTrip(request.tripId);
+                if (trip != null) {
+                    surge.booked(trip.origin, trip.destination, request.seats);
+                }
+            }
+        }
+        metrics.bookAll.record(System.nanoTime() - start);
+        return Arrays.asList(outcomes);
+    }
+
+    // Reserves every request in memory, then writes them as one journal line per shard
+    // involved. On the first refusal, or if a write fails, every reservation made so far
+    // is undone in reverse order. Runs under the stripes of all the trips involved.
+    //
+    // A booking within one shard is a single line and so all-or-none on disk as well;
+    // one that spans shards is all-or-none in memory and across processes, but a crash
+    // between its lines can keep some of them.
+    private boolean reserveAll(List<BulkBooking.Request> requests, BulkBooking.Outcome[] outcomes,
+                               Map<Trip, Set<User>> booked) {
+        Deque<Runnable> undo = new ArrayDeque<>();
+        Runnable undoAll = () -> undo.forEach(Runnable::run);
+        for (int i = 0; i < outcomes.length; i++) {
+            BulkBooking.Request request = requests.get(i);
+            Trip trip = getTrip(request.tripId);
+            if (trip == null) {
+                outcomes[i] = BulkBooking.Outcome.UNKNOWN_TRIP;
+            } else if (trip.isStarted) {
+                outcomes[i] = BulkBooking.Outcome.STARTED;
+            } else {
+                int held = trip.passengers.getOrDefault(request.user, 0);
+                if (trip.bookSeats(request.seats, request.user)) {
+                    undo.push(() -> trip.setSeats(request.user, held));
+                    booked.computeIfAbsent(trip, t -> new LinkedHashSet<>()).add(request.user);
+                    outcomes[i] = BulkBooking.Outcome.BOOKED;
+                    continue;
+                }
+                outcomes[i] = BulkBooking.Outcome.NOT_ENOUGH_SEATS;
+            }
+            undoAll.run();
+            return false;
+        }
+        Map<TripShard, Map<Trip, Set<User>>> byShard = new LinkedHashMap<>();
+        booked.forEach((trip, bookedUsers) -> byShard.computeIfAbsent(shardOf(trip.id), s -> new LinkedHashMap<>())
+            .put(trip, bookedUsers));
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        byShard.forEach((shard, bookings) -> writes.add(shard.journal.seatsBooked(bookings)));
+        if (!written(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])), undoAll)) {
+            Arrays.fill(outcomes, BulkBooking.Outcome.FAILED);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancelBooking(String tripId, User user) {
+        TripShard shard = shardOf(tripId);
+        Trip trip = shard == null ? null : shard.trips.get(tripId);
+        if (trip == null || user == null || !inTransaction(shard, trip, () -> {
+                int held = trip.passengers.getOrDefault(user, 0);
+                return !trip.isStarted && trip.cancelBooking(user) > 0
+                    && written(shard.journal.seatsBooked(trip, user), () -> trip.setSeats(user, held));
+            })) {
+            return false;
+        }
+        feed.publish(TripChangeFeed.Type.BOOKED, trip);
+        return true;
+    }
+
+    @Override
+    public boolean cancelTrip(String tripId, User host) {
+        TripShard shard = shardOf(tripId);
+        Trip trip = shard == null ? null : shard.trips.get(tripId);
+        if (trip == null || host == null || !trip.host.username.equals(host.username)) {
+            return false;
+        }
+        if (!inTransaction(shard, trip, () -> {
+                synchronized (trip) {
+                    if (trip.isStarted || !shard.trips.remove(tripId, trip)) {
+                        return false;
+                    }
+                }
+                return written(shard.journal.tripCancelled(trip), () -> shard.trips.putIfAbsent(tripId, trip));
+            })) {
+            return false;
+        }
+        feed.publish(TripChangeFeed.Type.REMOVED, trip);
+        return true;
+    }
+
+    @Override
+    public boolean startRide(String tripId) {
+        TripShard shard = shardOf(tripId);
+        Trip trip = shard == null ? null : shard.trips.get(tripId);
+        if (trip == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        if (!inTransaction(shard, trip, () -> {
+                synchronized (trip) {
+                    if (trip.isStarted) {
+                        return false;
+                    }
+                    trip.startRide();
+                }
+                return written(shard.journal.tripStarted(trip), () -> trip.isStarted = false);
+            })) {
+            return false;
+        }
+        feed.publish(TripChangeFeed.Type.STARTED, trip);
+        metrics.startRide.record(System.nanoTime() - start);
+        return true;
+    }
+
+    @Override
+    public Optional<Trip> findFullTrip(User host) {
+        if (host == null) {
+            return Optional.empty();
+        }
+        for (Trip trip : hostIndex.trips(host.username)) {
+            if (trip.isFull() && !trip.isStarted) {
+                return Optional.of(trip);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Trip> hostedTrips(User host) {
+        return host == null ? Collections.emptyList() : hostIndex.trips(host.username);
+    }
+
+    @Override
+    public TripChangeFeed changes() {
+        return feed;
+    }
+
+    @Override
+    public void refresh() {
+        try {
+            for (TripShard shard : shards) {
+                shard.journal.poll(users::get, shard.trips, feed);
+            }
+        } catch (IOException e) {
+            Log.warn(() -> "Could not read the trip journal: " + e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sync() {
+        CompletableFuture<?>[] syncs = new CompletableFuture<?>[shards.length + 1];
+        for (int i = 0; i < shards.length; i++) {
+            syncs[i] = shards[i].journal.sync();
+        }
+        syncs[shards.length] = userWrites.sync();
+        return CompletableFuture.allOf(syncs);
+    }
+
+    @Override
+    public double surgeMultiplier(String origin, String destination) {
+        return surge.multiplier(origin, destination);
+    }
+
+    EngineMetrics metrics() {
+        return metrics;
+    }
+
+    SurgePricing surge() {
+        return surge;
+    }
+
+    @Override
+    public void close() {
+        archiver.shutdownNow();
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                Log.warn(() -> "Could not stop watching the trip store: " + e);
+            }
+        }
+        metrics.unregister();
+        Log.debug(metrics::dump);
+        userWrites.close();
+        try {
+            for (TripShard shard : shards) {
+                shard.journal.close();
+            }
+            users.close();
+            if (locks != null) {
+                locks.close();
+            }
+        } catch (IOException e) {
+            Log.warn(() -> "Could not close the trip store: " + e);
+        }
+    }
+
+    // Runs a change to an existing trip as a cross-process transaction; see the class
+    // comment. Returns false if the change was refused, the trip is gone, or the lock or
+    // the journal write failed.
+    private boolean inTransaction(TripShard shard, Trip trip, StoreLocks.Action<Boolean> change) {
+        if (locks == null) {
+            try {
+                return change.run();
+            } catch (IOException e) {
+                Log.warn(() -> "Change to trip " + trip.id + " failed: " + e);
+                return false;
+            }
+        }
+        try {
+            return locks.withTrip(trip.id, () -> {
+                shard.journal.poll(users::get, shard.trips, feed);
+                return shard.trips.get(trip.id) == trip && change.run();
+            });
+        } catch (IOException e) {
+            Log.warn(() -> "Change to trip " + trip.id + " failed: " + e);
+            return false;
+        }
+    }
+
+    // Waits for a journal write; if it failed, undoes the in-memory change and returns false.
+    private static boolean written(CompletableFuture<Void> write, Runnable undo) {
+        try {
+            write.join();
+            return true;
+        } catch (CompletionException e) {
+            undo.run();
+            Log.warn(() -> "Could not write to the trip journal: " + e.getCause());
+            return false;
+        }
+    }
+
+    private static StoreLocks openLocks(Path file) {
+        try {
+            return new StoreLocks(file);
+        } catch (IOException e) {
+            Log.warn(() -> "Cannot open " + file + "; changes are not coordinated with other processes: " + e);
+            return null;
+        }
+    }
+
+    // The shard holding the trip, or null if no shard does.
+    private TripShard shardOf(String tripId) {
+        if (tripId == null) {
+            return null;
+        }
+        for (TripShard shard : shards) {
+            if (shard.trips.containsKey(tripId)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    // Compacts every shard; see saveTrips(TripShard).
+    void saveTrips() {
+        for (TripShard shard : shards) {
+            saveTrips(shard);
+        }
+    }
+
+    // Folds the shard's journal into a fresh snapshot, archiving trips that are due.
+    // Runs on the shard's journal writer thread when its compaction is due, and on the
+    // archiver thread when one of its archive buckets is.
+    void saveTrips(TripShard shard) {
+        long start = System.nanoTime();
+        try {
+            metrics.archived.add(shard.journal.compact(users::get, shard.trips, feed, shard.archive));
+        } catch (IOException e) {
+            Log.warn(() -> "Could not compact " + shard.journalFile + ": " + e);
+        }
+        metrics.save.record(System.nanoTime() - start);
+    }
+
+    private void archiveDue() {
+        long now = System.currentTimeMillis();
+        for (TripShard shard : shards) {
+            if (shard.archive.due(now)) {
+                saveTrips(shard);
+            }
+        }
+    }
+
+    private static UserStore openUsers(Path file, StoreLocks locks) {
+        try {
+            return new UserStore(file, locks);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open " + file, e);
+        }
+    }
+
+    private JournalWatcher watch(Path directory) {
+        try {
+            Set<String> files = new HashSet<>();
+            for (TripShard shard : shards) {
+                files.add(shard.journalFile);
+            }
+            return new JournalWatcher(directory, files, this::refresh);
+        } catch (IOException e) {
+            Log.warn(() -> "Cannot watch " + directory.toAbsolutePath() + " for changes: " + e);
+            return null;
+        }
+    }
+
+    // Loads the shards in parallel, then indexes all of their trips.
+    private void loadTrips() {
+        long start = System.nanoTime();
+        Arrays.stream(shards).parallel().forEach(shard -> {
+            try {
+                shard.journal.load(users::get, shard.trips);
+            } catch (IOException e) {
+                Log.info(() -> "Trip shard " + shard.index + " not found. Starting it empty.");
+            }
+        });
+        List<Trip> trips = new ArrayList<>();
+        for (TripShard shard : shards) {
+            trips.addAll(shard.trips.values());
+        }
+        routeIndex.rebuild(trips);
+        hostIndex.rebuild(trips);
+        geoIndex.rebuild(trips);
+        Log.info(() -> "Finished loading trips. Total trips: " + trips.size() + " in " + shards.length + " shards");
+        metrics.load.record(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.function.Supplier;
+
+// Minimal leveled logging to stdout. The level comes from -Dcab.log.level
+// (DEBUG, INFO, WARN or OFF; INFO by default). Messages are passed as suppliers so a
+// disabled level costs a field read, not string building.
+final class Log {
+    enum Level { DEBUG, INFO, WARN, OFF }
+
+    static volatile Level level = parse(System.getProperty("cab.log.level", "INFO"));
+
+    private Log() {
+    }
+
+    static boolean enabled(Level at) {
+        return at.compareTo(level) >= 0 && at != Level.OFF;
+    }
+
+    static void debug(Supplier<String> message) {
+        if (enabled(Level.DEBUG)) {
+            System.out.println(message.get());
+        }
+    }
+
+    static void info(Supplier<String> message) {
+        if (enabled(Level.INFO)) {
+            System.out.println(message.get());
+        }
+    }
+
+    static void warn(Supplier<String> message) {
+        if (enabled(Level.WARN)) {
+            System.err.println(message.get());
+        }
+    }
+
+    private static Level parse(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// RideMatchingEngine that forwards every call to a TripServer, for running the Swing UI
+// as a thin client. Requests go over one connection, one at a time; a second connection
+// is subscribed with WATCH and folds the server's changes into the trips this client
+// holds, publishing them on changes() as they arrive. Trips are kept as live objects
+// as the interface requires: a trip seen again is merged into the Trip already handed
+// out.
+//
+// Users received from the server carry no password. Calls that fail because the server
+// cannot be reached are refused (false or null) and logged; the next call reconnects.
+class RemoteRideMatchingEngine implements RideMatchingEngine {
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Map<String, Trip> trips = new ConcurrentHashMap<>();
+    private final TripChangeFeed feed = new TripChangeFeed();
+    private final Thread watcher;
+    private volatile boolean closed = false;
+    private volatile Socket watchSocket;
+
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+
+    // Reply to one request: the trips it carried, and whether it succeeded.
+    private static final class Reply {
+        final List<Trip> trips = new ArrayList<>();
+        final List<BulkBooking.Outcome> outcomes = new ArrayList<>();
+        double multiplier = 1;
+        boolean ok;
+    }
+
+    // address is host:port, or just a port on this machine
+    static RemoteRideMatchingEngine connect(String address) {
+        int colon = address.lastIndexOf(':');
+        return colon < 0
+            ? new RemoteRideMatchingEngine("localhost", Integer.parseInt(address))
+            : new RemoteRideMatchingEngine(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    RemoteRideMatchingEngine(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.watcher = new Thread(this::watch, "trip-server-watch");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    @Override
+    public User login(String username, String password) {
+        return call("LOGIN", username, password).ok ? users.get(username) : null;
+    }
+
+    @Override
+    public User signUp(String name, String username, String password, String role, String phone) {
+        // The password travels in the request line too, so it is held to the same rule
+        if (!UserStore.isValidField(name) || !UserStore.isValidField(username) || !UserStore.isValidField(password)
+                || !UserStore.isValidField(role) || !UserStore.isValidField(phone)) {
+            return null;
+        }
+        return call("SIGNUP", name, username, password, role, phone).ok ? users.get(username) : null;
+    }
+
+    @Override
+    public Trip postTrip(User host, String origin, String destination, Date departureTime, Date arrivalTime,
+                         int maxPassengers, double pricePerPassenger) {
+        if (host == null || !GeoPoint.isValidPlace(origin) || !GeoPoint.isValidPlace(destination)) {
+            return null;
+        }
+        return first(call("POST", host.username, origin, destination, String.valueOf(departureTime.getTime()),
+            String.valueOf(arrivalTime.getTime()), String.valueOf(maxPassengers), String.valueOf(pricePerPassenger)));
+    }
+
+    @Override
+    public List<Trip> search(String origin, String destination, boolean countDemand) {
+        return call(countDemand ? "SEARCH" : "LOOKUP", origin, destination).trips;
+    }
+
+    @Override
+    public List<Trip> search(String origin, String destination, Date from, Date to, boolean countDemand) {
+        return call(countDemand ? "SEARCH" : "LOOKUP", origin, destination, String.valueOf(from.getTime()), String.valueOf(to.getTime())).trips;
+    }
+
+    @Override
+    public List<Trip> searchNear(GeoPoint pickup, GeoPoint dropoff, double radiusMeters) {
+        return call("NEAR", pickup.toString(), dropoff.toString(), String.valueOf(radiusMeters)).trips;
+    }
+
+    @Override
+    public List<Trip> pastTrips(String origin, String destination, Date from, Date to) {
+        return call("HISTORY", origin, destination, String.valueOf(from.getTime()), String.valueOf(to.getTime())).trips;
+    }
+
+    @Override
+    public Trip getTrip(String tripId) {
+        return first(call("GET", tripId));
+    }
+
+    @Override
+    public double surgeMultiplier(String origin, String destination) {
+        Reply reply = call("SURGE", origin, destination);
+        return reply.ok ? reply.multiplier : 1;
+    }
+
+    @Override
+    public boolean bookSeats(String tripId, User user, int seats) {
+        return user != null && call("BOOK", tripId, user.username, String.valueOf(seats)).ok;
+    }
+
+    @Override
+    public List<BulkBooking.Outcome> bookAll(List<BulkBooking.Request> requests) {
+        List<String> fields = new ArrayList<>();
+        fields.add("BULK");
+        for (BulkBooking.Request request : requests) {
+            fields.add(request.tripId);
+            fields.add(request.user == null ? "" : request.user.username);
+            fields.add(String.valueOf(request.seats));
+        }
+        Reply reply = call(fields.toArray(new String[0]));
+        if (reply.outcomes.size() != requests.size()) {
+            return Collections.nCopies(requests.size(), BulkBooking.Outcome.FAILED);
+        }
+        return reply.outcomes;
+    }
+
+    @Override
+    public boolean cancelBooking(String tripId, User user) {
+        return user != null && call("UNBOOK", tripId, user.username).ok;
+    }
+
+    @Override
+    public boolean cancelTrip(String tripId, User host) {
+        if (host == null || !call("CANCEL", tripId, host.username).ok) {
+            return false;
+        }
+        removed(tripId);
+        return true;
+    }
+
+    @Override
+    public boolean startRide(String tripId) {
+        return call("START", tripId).ok;
+    }
+
+    @Override
+    public Optional<Trip> findFullTrip(User host) {
+        return host == null ? Optional.empty() : Optional.ofNullable(first(call("FULL", host.username)));
+    }
+
+    @Override
+    public List<Trip> hostedTrips(User host) {
+        return host == null ? Collections.emptyList() : call("HOSTED", host.username).trips;
+    }
+
+    @Override
+    public TripChangeFeed changes() {
+        return feed;
+    }
+
+    @Override
+    public CompletableFuture<Void> sync() {
+        Reply reply = call("SYNC");
+        return reply.ok ? CompletableFuture.completedFuture(null)
+            : CompletableFuture.failedFuture(new IOException("Trip server could not save changes"));
+    }
+
+    // Changes are pushed by the server; nothing to poll.
+    @Override
+    public void refresh() {
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket watching = watchSocket;
+        if (watching != null) {
+            closeQuietly(watching);
+        }
+        synchronized (this) {
+            disconnect();
+        }
+    }
+
+    private synchronized Reply call(String... fields) {
+        Reply reply = new Reply();
+        try {
+            if (socket == null) {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            }
+            out.write(String.join(",", fields));
+            out.write('\n');
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("T,")) {
+                    reply.trips.add(received(line, 1, null));
+                } else if (line.startsWith("A,")) {
+                    reply.trips.add(parse(line, 1));
+                } else if (line.startsWith("R,")) {
+                    reply.outcomes.add(BulkBooking.Outcome.valueOf(line.substring(2)));
+                } else if (line.startsWith("S,")) {
+                    reply.multiplier = Double.parseDouble(line.substring(2));
+                } else if (line.startsWith("U,")) {
+                    receivedUser(line);
+                } else {
+                    reply.ok = line.equals("OK");
+                    if (line.startsWith("ERR,")) {
+                        String error = line;
+                        Log.warn(() -> "Trip server: " + error.substring(4));
+                    }
+                    return reply;
+                }
+            }
+            throw new EOFException("Trip server closed the connection");
+        } catch (IOException e) {
+            Log.warn(() -> "Trip server " + host + ":" + port + " unavailable: " + e);
+            disconnect();
+            reply.trips.clear();
+            reply.ok = false;
+            return reply;
+        }
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            closeQuietly(socket);
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    // Watch thread: follows the server's change stream, reconnecting if it drops.
+    private void watch() {
+        while (!closed) {
+            try (Socket s = new Socket(host, port)) {
+                watchSocket = s;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write("WATCH\n");
+                writer.flush();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("U,")) {
+                        receivedUser(line);
+                    } else if (line.startsWith("E,")) {
+                        int comma = line.indexOf(',', 2);
+                        TripChangeFeed.Type type = TripChangeFeed.Type.valueOf(line.substring(2, comma));
+                        if (type == TripChangeFeed.Type.REMOVED) {
+                            removed(line.substring(comma + 1, line.indexOf(',', comma + 1)));
+                        } else {
+                            received(line, 2, type);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    Log.debug(() -> "Trip server watch dropped: " + e);
+                }
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void receivedUser(String line) {
+        String[] f = line.split(",", -1);
+        if (f.length == 5) {
+            users.computeIfAbsent(f[2], username -> new User(f[1], username, "", f[3], f[4]));
+        }
+    }
+
+    // Parses a trip from the given field on and merges it into the trip we already
+    // hold, if any. A new trip is published as `type` when it came from the change stream.
+    private Trip received(String line, int from, TripChangeFeed.Type type) throws IOException {
+        Trip fresh = parse(line, from);
+        Trip existing = trips.putIfAbsent(fresh.id, fresh);
+        if (existing == null) {
+            if (type != null) {
+                feed.publish(type, fresh);
+            }
+            return fresh;
+        }
+        TripJournal.merge(existing, fresh, feed);
+        return existing;
+    }
+
+    private Trip parse(String line, int from) throws IOException {
+        CsvRecordReader reader = new CsvRecordReader(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)), 0, false);
+        Trip trip = reader.next() ? TripJournal.parseTrip(reader, from, users::get) : null;
+        if (trip == null) {
+            throw new IOException("Malformed trip from server: " + line);
+        }
+        return trip;
+    }
+
+    private void removed(String tripId) {
+        Trip trip = trips.remove(tripId);
+        if (trip != null) {
+            feed.publish(TripChangeFeed.Type.REMOVED, trip);
+        }
+    }
+
+    private static Trip first(Reply reply) {
+        return reply.ok && !reply.trips.isEmpty() ? reply.trips.get(0) : null;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays JSONL request traces against a RideMatchingEngine and reports throughput,
+// latency percentiles per operation, the booking conflict rate and, against a local
+// engine, the routes the trace drove surge prices up on; also writes synthetic traces
+// for capacity planning.
+//
+//   java ReplayDriver generate <trace.jsonl> [ops] [users] [routes] [skew]
+//   java ReplayDriver replay <trace.jsonl> [--threads n] [--rate opsPerSecond]
+//                                          [--server host:port] [--dir storeDir]
+//
+// One request per line, a flat JSON object:
+//
+//   {"op":"signup","user":"u1","name":"U 1","password":"p","role":"Student","phone":"1"}
+//   {"op":"login","user":"u1","password":"p"}
+//   {"op":"post","user":"u0","trip":"t1","origin":"A","destination":"B","departIn":900000,"duration":1800000,"seats":4,"price":12.5}
+//   {"op":"search","origin":"A","destination":"B"}
+//   {"op":"book","user":"u1","trip":"t1","seats":1}
+//   {"op":"start","user":"u0","trip":"t1"}
+//
+// Trip names are local to the trace and mapped to the ids the engine hands out;
+// departIn is relative to the start of the replay. Requests are taken in trace order
+// by --threads workers, so a booking can overtake the post of its trip; those are
+// counted as "trip not posted yet" rather than as conflicts. With --rate the driver is
+// open-loop: request i is due at start + i / rate, and its latency is measured from
+// when it was due, so a stalled engine shows up in the percentiles instead of silently
+// slowing the load down. Without --server the trace runs against a fresh
+// LocalRideMatchingEngine in a temporary directory (or --dir).
+class ReplayDriver {
+    private static final String[] LOCATIONS = {"A", "B", "C", "D", "E", "F", "G", "H", "I", "J"};
+    private static final String[] OPS = {"signup", "login", "post", "search", "book", "start"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("generate")) {
+            int ops = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+            int users = args.length > 3 ? Integer.parseInt(args[3]) : 2_000;
+            int routes = args.length > 4 ? Integer.parseInt(args[4]) : 40;
+            double skew = args.length > 5 ? Double.parseDouble(args[5]) : 1.1;
+            generate(Paths.get(args[1]), ops, users, routes, skew, new Random(42));
+        } else if (args.length >= 2 && args[0].equals("replay")) {
+            replay(args);
+        } else {
+            System.err.println("Usage: java ReplayDriver generate <trace.jsonl> [ops] [users] [routes] [skew]");
+            System.err.println("       java ReplayDriver replay <trace.jsonl> [--threads n] [--rate opsPerSecond]"
+                + " [--server host:port] [--dir storeDir]");
+            System.exit(1);
+        }
+    }
+
+    // ----- replay -----
+
+    private static void replay(String[] args) throws Exception {
+        Path trace = Paths.get(args[1]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        double rate = 0;
+        String server = null;
+        Path dir = null;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--rate": rate = Double.parseDouble(args[i + 1]); break;
+                case "--server": server = args[i + 1]; break;
+                case "--dir": dir = Paths.get(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        List<Map<String, String>> requests = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(trace, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    requests.add(parseJson(line));
+                }
+            }
+        }
+
+        Path store = server == null && dir == null ? Files.createTempDirectory("cab-replay") : dir;
+        String address = server;
+        Replay replay = new Replay(requests, rate, () -> address != null
+            ? RemoteRideMatchingEngine.connect(address) : sharedLocal(store));
+        Map<String, SurgePricing.RouteDemand> demand = Collections.emptyMap();
+        try {
+            replay.run(threads);
+            if (sharedLocal != null) {
+                demand = sharedLocal.surge().demandByRoute();
+            }
+        } finally {
+            if (sharedLocal != null) {
+                sharedLocal.close();
+            }
+            if (server == null && dir == null) {
+                CabSharingBenchmark.deleteRecursively(store);
+            }
+        }
+        System.out.printf("%,d requests in %.2f s: %,.0f requests/s (%d threads, %s)%n",
+            requests.size(), replay.elapsed / 1e9, requests.size() * 1e9 / replay.elapsed, threads,
+            rate > 0 ? String.format("target %,.0f/s", rate) : "unthrottled");
+        System.out.printf("%-8s %10s %10s %10s %10s %10s%n", "op", "count", "p50", "p99", "p999", "max");
+        for (int i = 0; i < OPS.length; i++) {
+            LatencyHistogram h = replay.latency[i];
+            if (h.count() > 0) {
+                System.out.printf("%-8s %,10d %10s %10s %10s %10s%n", OPS[i], h.count(),
+                    LatencyHistogram.formatNanos(h.percentile(0.50)), LatencyHistogram.formatNanos(h.percentile(0.99)),
+                    LatencyHistogram.formatNanos(h.percentile(0.999)), LatencyHistogram.formatNanos(h.max()));
+            }
+        }
+        long books = replay.latency[4].count();
+        System.out.printf("bookings: %,d attempted, %,d refused (%.2f%% conflict rate), %,d on trips not posted yet%n",
+            books, replay.refused.sum(), books == 0 ? 0 : 100.0 * replay.refused.sum() / books, replay.missing.sum());
+        if (replay.failed.sum() > 0) {
+            System.out.printf("other refused requests: %,d%n", replay.failed.sum());
+        }
+        List<Map.Entry<String, SurgePricing.RouteDemand>> surging = new ArrayList<>(demand.entrySet());
+        surging.sort(Comparator.comparingDouble((Map.Entry<String, SurgePricing.RouteDemand> e) -> -e.getValue().multiplier)
+            .thenComparingLong(e -> -e.getValue().searches));
+        for (Map.Entry<String, SurgePricing.RouteDemand> route : surging.subList(0, Math.min(5, surging.size()))) {
+            System.out.printf("surge    %-8s %s%n", route.getKey(), route.getValue());
+        }
+    }
+
+    // Every local worker shares one engine, as a server would.
+    private static LocalRideMatchingEngine sharedLocal;
+
+    private static synchronized RideMatchingEngine sharedLocal(Path dir) {
+        if (sharedLocal == null) {
+            sharedLocal = new LocalRideMatchingEngine(dir);
+        }
+        return sharedLocal;
+    }
+
+    private static final class Replay {
+        final List<Map<String, String>> requests;
+        final double rate;
+        final Callable<RideMatchingEngine> engines;
+        final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+        final Map<String, String> tripIds = new ConcurrentHashMap<>();
+        final Map<String, String> passwords = new ConcurrentHashMap<>();
+        final AtomicInteger next = new AtomicInteger();
+        final LongAdder refused = new LongAdder();
+        final LongAdder missing = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        long startNanos;
+        long startMillis;
+        long elapsed;
+
+        Replay(List<Map<String, String>> requests, double rate, Callable<RideMatchingEngine> engines) {
+            this.requests = requests;
+            this.rate = rate;
+            this.engines = engines;
+            for (int i = 0; i < OPS.length; i++) {
+                latency[i] = new LatencyHistogram();
+            }
+        }
+
+        void run(int threads) throws Exception {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> workers = new ArrayList<>();
+            CountDownLatch ready = new CountDownLatch(threads);
+            CountDownLatch go = new CountDownLatch(1);
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(() -> {
+                    Worker worker = new Worker(engines.call());
+                    ready.countDown();
+                    go.await();
+                    worker.run();
+                    return null;
+                }));
+            }
+            ready.await();
+            startMillis = System.currentTimeMillis();
+            startNanos = System.nanoTime();
+            go.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            elapsed = System.nanoTime() - startNanos;
+            pool.shutdown();
+        }
+
+        // One client: its own engine connection and its own logged-in users.
+        final class Worker {
+            final RideMatchingEngine engine;
+            final Map<String, User> users = new HashMap<>();
+
+            Worker(RideMatchingEngine engine) {
+                this.engine = engine;
+            }
+
+            void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < requests.size()) {
+                    Map<String, String> request = requests.get(i);
+                    int op = Arrays.asList(OPS).indexOf(request.get("op"));
+                    if (op < 0) {
+                        failed.increment();
+                        continue;
+                    }
+                    long due = startNanos;
+                    if (rate > 0) {
+                        due += (long) (i * 1e9 / rate);
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    // resolve users and trips outside the timed section
+                    User user = request.containsKey("user") && op > 1 ? user(request.get("user")) : null;
+                    String tripId = request.containsKey("trip") && op != 2 ? tripIds.get(request.get("trip")) : null;
+                    if ((op == 4 || op == 5) && tripId == null) {
+                        missing.increment();
+                        continue;
+                    }
+                    long start = rate > 0 ? due : System.nanoTime();
+                    boolean ok = execute(op, request, user, tripId);
+                    latency[op].record(System.nanoTime() - start);
+                    if (!ok) {
+                        (op == 4 ? refused : failed).increment();
+                    }
+                }
+            }
+
+            private boolean execute(int op, Map<String, String> r, User user, String tripId) {
+                switch (op) {
+                    case 0: {
+                        User created = engine.signUp(r.get("name"), r.get("user"), r.get("password"), r.get("role"), r.get("phone"));
+                        passwords.put(r.get("user"), r.get("password"));
+                        if (created != null) {
+                            users.put(created.username, created);
+                        }
+                        return created != null;
+                    }
+                    case 1: {
+                        User loggedIn = engine.login(r.get("user"), r.get("password"));
+                        if (loggedIn != null) {
+                            users.put(loggedIn.username, loggedIn);
+                        }
+                        return loggedIn != null;
+                    }
+                    case 2: {
+                        Date departure = new Date(startMillis + Long.parseLong(r.get("departIn")));
+                        Trip trip = engine.postTrip(user, r.get("origin"), r.get("destination"), departure,
+                            new Date(departure.getTime() + Long.parseLong(r.getOrDefault("duration", "1800000"))),
+                            Integer.parseInt(r.get("seats")), Double.parseDouble(r.get("price")));
+                        if (trip != null) {
+                            tripIds.put(r.get("trip"), trip.id);
+                        }
+                        return trip != null;
+                    }
+                    case 3:
+                        engine.search(r.get("origin"), r.get("destination"), true);
+                        return true;
+                    case 4:
+                        return engine.bookSeats(tripId, user, Integer.parseInt(r.getOrDefault("seats", "1")));
+                    default:
+                        return engine.startRide(tripId);
+                }
+            }
+
+            // Users signed up by another worker are logged in on this worker's engine
+            // first, as a separate client would have to.
+            private User user(String username) {
+                User user = users.get(username);
+                String password = passwords.get(username);
+                if (user == null && password != null) {
+                    user = engine.login(username, password);
+                    if (user != null) {
+                        users.put(username, user);
+                    }
+                }
+                return user;
+            }
+        }
+    }
+
+    // ----- generate -----
+
+    // Writes a rush-hour trace. Route popularity follows a Zipf distribution with the
+    // given exponent, so a few routes take most of the traffic; every passenger on a
+    // route wants the earliest open trip, which is where booking conflicts come from.
+    // Drivers post when a route runs out of open trips and start trips once full.
+    static void generate(Path file, int ops, int users, int routes, double skew, Random random) throws IOException {
+        List<String[]> allRoutes = new ArrayList<>();
+        for (String origin : LOCATIONS) {
+            for (String destination : LOCATIONS) {
+                if (!origin.equals(destination)) {
+                    allRoutes.add(new String[] {origin, destination});
+                }
+            }
+        }
+        Collections.shuffle(allRoutes, random);
+        routes = Math.max(1, Math.min(routes, allRoutes.size()));
+        double[] cumulative = new double[routes];
+        double total = 0;
+        for (int r = 0; r < routes; r++) {
+            total += 1 / Math.pow(r + 1, skew);
+            cumulative[r] = total;
+        }
+
+        int drivers = Math.max(1, users / 10);
+        List<Deque<String[]>> open = new ArrayList<>();  // per route: {trip, host, seatsLeft}
+        List<String[]> full = new ArrayList<>();
+        for (int r = 0; r < routes; r++) {
+            open.add(new ArrayDeque<>());
+        }
+        int trips = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int u = 0; u < users; u++) {
+                boolean driver = u < drivers;
+                writeJson(out, "op", "signup", "user", "u" + u, "name", "User " + u, "password", "pw" + u,
+                    "role", driver ? "Cab Driver" : "Student", "phone", String.valueOf(9_000_000_000L + u));
+            }
+            for (int i = 0; i < ops; i++) {
+                int route = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                route = route < 0 ? -route - 1 : route;
+                route = Math.min(route, routes - 1);
+                String[] od = allRoutes.get(route);
+                Deque<String[]> routeTrips = open.get(route);
+                double dice = random.nextDouble();
+                if (dice < 0.03 && !full.isEmpty()) {
+                    String[] trip = full.remove(random.nextInt(full.size()));
+                    writeJson(out, "op", "start", "user", trip[1], "trip", trip[0]);
+                } else if (dice < 0.06) {
+                    int user = random.nextInt(users);
+                    writeJson(out, "op", "login", "user", "u" + user, "password", "pw" + user);
+                } else if (dice < 0.55) {
+                    writeJson(out, "op", "search", "origin", od[0], "destination", od[1]);
+                } else if (routeTrips.isEmpty() || dice < 0.60) {
+                    String host = "u" + random.nextInt(drivers);
+                    String trip = "t" + trips++;
+                    int seats = 3 + random.nextInt(4);
+                    writeJson(out, "op", "post", "user", host, "trip", trip, "origin", od[0], "destination", od[1],
+                        "departIn", String.valueOf(60_000L * (5 + random.nextInt(120))), "duration", "1800000",
+                        "seats", String.valueOf(seats), "price", String.valueOf(5 + random.nextInt(20)));
+                    routeTrips.addLast(new String[] {trip, host, String.valueOf(seats)});
+                } else {
+                    String[] trip = routeTrips.peekFirst();
+                    int seats = random.nextInt(4) == 0 ? 2 : 1;
+                    writeJson(out, "op", "book", "user", "u" + (drivers + random.nextInt(Math.max(1, users - drivers))),
+                        "trip", trip[0], "seats", String.valueOf(seats));
+                    int left = Integer.parseInt(trip[2]) - seats;
+                    trip[2] = String.valueOf(left);
+                    if (left <= 0) {
+                        full.add(routeTrips.removeFirst());
+                    }
+                }
+            }
+        }
+        System.out.printf("Wrote %,d requests (%,d sign-ups, %,d trips on %d routes, skew %.2f) to %s%n",
+            ops + users, users, trips, routes, skew, file);
+    }
+
+    // ----- JSON -----
+
+    private static void writeJson(Writer out, String... keyValues) throws IOException {
+        out.write('{');
+        for (int i = 0; i < keyValues.length; i += 2) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(quote(keyValues[i]));
+            out.write(':');
+            String value = keyValues[i + 1];
+            out.write(isNumber(value) ? value : quote(value));
+        }
+        out.write("}\n");
+    }
+
+    private static boolean isNumber(String value) {
+        return !value.isEmpty() && value.matches("-?\\d+(\\.\\d+)?");
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // Parses one flat JSON object; values are kept as their text (strings unquoted).
+    static Map<String, String> parseJson(String line) {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {skip(line, 0)};
+        expect(line, pos, '{');
+        if (peek(line, pos) == '}') {
+            return fields;
+        }
+        while (true) {
+            String key = readString(line, pos);
+            expect(line, pos, ':');
+            fields.put(key, peek(line, pos) == '"' ? readString(line, pos) : readLiteral(line, pos));
+            char c = peek(line, pos);
+            pos[0]++;
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Expected , or } at " + (pos[0] - 1) + ": " + line);
+            }
+        }
+    }
+
+    private static int skip(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static char peek(String s, int[] pos) {
+        pos[0] = skip(s, pos[0]);
+        if (pos[0] >= s.length()) {
+            throw new IllegalArgumentException("Unexpected end of line: " + s);
+        }
+        return s.charAt(pos[0]);
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (peek(s, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + pos[0] + ": " + s);
+        }
+        pos[0]++;
+    }
+
+    private static String readString(String s, int[] pos) {
+        expect(s, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos[0] >= s.length()) {
+                throw new IllegalArgumentException("Unterminated string: " + s);
+            }
+            char c = s.charAt(pos[0]++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                char e = s.charAt(pos[0]++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u': sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16)); pos[0] += 4; break;
+                    default: sb.append(e);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static String readLiteral(String s, int[] pos) {
+        int start = pos[0];
+        while (pos[0] < s.length() && ",} \t".indexOf(s.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        return s.substring(start, pos[0]);
+    }
+}
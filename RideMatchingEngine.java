@@ -0,0 +1,75 @@
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Headless booking, search and persistence API behind the Swing UI.
+//
+// Implementations are safe to call from any number of threads at once. Trips and users
+// are handed out as live objects: a Trip returned by one call is the same object that
+// later bookings and ride starts update, and every change to it is published on
+// changes(). Methods that can be refused (full trip, unknown id, taken username) return
+// false or null rather than throwing.
+interface RideMatchingEngine {
+    // Returns the user if the credentials match, otherwise null.
+    User login(String username, String password);
+
+    // Registers a new user; returns null if the username is already taken, or if a field
+    // other than the password is blank or holds a ',' or a line break.
+    User signUp(String name, String username, String password, String role, String phone);
+
+    Trip postTrip(User host, String origin, String destination, Date departureTime, Date arrivalTime,
+                  int maxPassengers, double pricePerPassenger);
+
+    // Bookable trips from origin to destination, earliest departure first. countDemand
+    // is true for a search a rider started, which counts as demand for the route (see
+    // SurgePricing), and false for refreshes and matching done on the engine's side.
+    List<Trip> search(String origin, String destination, boolean countDemand);
+
+    // Bookable trips from origin to destination departing within [from, to].
+    List<Trip> search(String origin, String destination, Date from, Date to, boolean countDemand);
+
+    // Bookable trips whose route passes within radiusMeters of both the pickup and the
+    // drop-off, in that order, earliest departure first. See GeoIndex.
+    List<Trip> searchNear(GeoPoint pickup, GeoPoint dropoff, double radiusMeters);
+
+    Trip getTrip(String tripId);
+
+    // How much demand on the route currently outstrips its open seats, as a price
+    // multiplier; 1 means none. See SurgePricing.
+    double surgeMultiplier(String origin, String destination);
+
+    // Archived trips (arrived long ago; see TripArchive) from origin to destination that
+    // departed within [from, to]. These are copies, not live objects.
+    List<Trip> pastTrips(String origin, String destination, Date from, Date to);
+
+    boolean bookSeats(String tripId, User user, int seats);
+
+    // Books every request or none of them, across any number of trips, as one change:
+    // one lock round and one journal write. Returns an outcome per request, in order;
+    // either all are BOOKED or none is.
+    List<BulkBooking.Outcome> bookAll(List<BulkBooking.Request> requests);
+
+    // Releases every seat the user holds on a trip that has not started yet.
+    boolean cancelBooking(String tripId, User user);
+
+    // Withdraws a trip that has not started yet; only its host may do this.
+    boolean cancelTrip(String tripId, User host);
+
+    boolean startRide(String tripId);
+
+    // A trip of this host that is full and waiting to be started, if any.
+    Optional<Trip> findFullTrip(User host);
+
+    // The host's trips that have not started yet, earliest departure first.
+    List<Trip> hostedTrips(User host);
+
+    TripChangeFeed changes();
+
+    // Completes once every change made before the call has reached disk, or
+    // exceptionally if it could not be saved. Mutating calls return before that.
+    CompletableFuture<Void> sync();
+
+    // Picks up changes made by other processes sharing the same store.
+    void refresh();
+
+    void close();
+}
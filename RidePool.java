@@ -0,0 +1,307 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+// Batch matcher for riders who ask to be placed on any suitable trip instead of picking
+// one: requests wait here, and match() assigns everything pending in one pass.
+//
+// Requests are grouped by route and planned in parallel, one fork/join task per group.
+// Within a group, larger parties go first, and each takes the trip in its departure
+// window with the least detour, breaking ties by the tightest fit (fewest seats left
+// over) and then the earliest departure. This fills whole trips rather than spreading
+// riders thinly, and leaves room on other trips for the parties that need it. Groups
+// that share trips (see searchNear) may plan the same seat twice; the booking decides.
+//
+// The plan is booked in chunks of up to APPLY_CHUNK riders through bookAll(), so each
+// chunk costs one lock round and one journal write yet every seat is checked and
+// published like any other booking. A chunk that is refused as a whole (someone else
+// took a seat since planning) falls back to bookSeats() per rider, so one lost seat
+// costs only its own rider. Requests that were not placed stay pending for the next
+// batch until their window closes. Bookings wait on the trip locks and the journal
+// write, so they run as managed blocks: the pool adds a thread while one is waiting
+// instead of letting planning or other chunks stall behind it.
+class RidePool {
+    static final int THREADS = Integer.getInteger("cab.pool.threads",
+        Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+    static final int APPLY_CHUNK = Integer.getInteger("cab.pool.applyChunk", 256);
+
+    // A rider waiting to be placed. Pickup and drop-off are place strings (see
+    // GeoPoint); with a radius above 0 they match any trip passing that close to both,
+    // otherwise only trips on exactly that route.
+    static final class Request {
+        final User user;
+        final String pickup;
+        final String dropoff;
+        final int seats;
+        final Date earliest;
+        final Date latest;
+        final double radiusMeters;
+
+        Request(User user, String pickup, String dropoff, int seats, Date earliest, Date latest, double radiusMeters) {
+            this.user = user;
+            this.pickup = pickup;
+            this.dropoff = dropoff;
+            this.seats = seats;
+            this.earliest = earliest;
+            this.latest = latest;
+            this.radiusMeters = radiusMeters;
+        }
+
+        String route() {
+            return RouteIndex.routeKey(pickup, dropoff) + "~" + radiusMeters;
+        }
+    }
+
+    // A request placed on a trip, with the distance the rider is off its route at
+    // either end.
+    static final class Assignment {
+        final Request request;
+        final Trip trip;
+        final double detourMeters;
+
+        Assignment(Request request, Trip trip, double detourMeters) {
+            this.request = request;
+            this.trip = trip;
+            this.detourMeters = detourMeters;
+        }
+    }
+
+    private final RideMatchingEngine engine;
+    private final ForkJoinPool pool = new ForkJoinPool(THREADS);
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+
+    RidePool(RideMatchingEngine engine) {
+        this.engine = engine;
+    }
+
+    void submit(Request request) {
+        pending.add(request);
+    }
+
+    // Plans and books everything pending; returns the bookings made.
+    List<Assignment> match() {
+        List<Request> batch = new ArrayList<>();
+        for (Request request; (request = pending.poll()) != null; ) {
+            batch.add(request);
+        }
+        if (batch.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long start = System.nanoTime();
+        List<Assignment> plan = plan(batch);
+        long planned = System.nanoTime();
+        List<Assignment> booked = apply(plan);
+        Set<Request> placed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Assignment assignment : booked) {
+            placed.add(assignment.request);
+        }
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Request request : batch) {
+            if (placed.contains(request)) {
+                continue;
+            }
+            if (request.latest.getTime() > now) {
+                pending.add(request);
+            } else {
+                expired++;
+            }
+        }
+        int dropped = expired;
+        Log.info(() -> String.format("Ride pool: %d requests, %d planned in %.1f ms, %d booked in %.1f ms, %d expired",
+            batch.size(), plan.size(), (planned - start) / 1e6, booked.size(), (System.nanoTime() - planned) / 1e6, dropped));
+        return booked;
+    }
+
+    // Assigns requests to trips without booking anything.
+    List<Assignment> plan(List<Request> requests) {
+        Map<String, List<Request>> routes = new HashMap<>();
+        for (Request request : requests) {
+            if (request.user != null && request.seats > 0) {
+                routes.computeIfAbsent(request.route(), k -> new ArrayList<>()).add(request);
+            }
+        }
+        List<List<Request>> groups = new ArrayList<>(routes.values());
+        return pool.invoke(new PlanTask(groups, 0, groups.size()));
+    }
+
+    // Books the planned assignments through the engine, chunks in parallel; returns
+    // those that were booked.
+    List<Assignment> apply(List<Assignment> plan) {
+        return pool.invoke(new ApplyTask(plan, 0, plan.size()));
+    }
+
+    void close() {
+        pool.shutdown();
+    }
+
+    // Plans groups [from, to), splitting until one group is left.
+    private final class PlanTask extends RecursiveTask<List<Assignment>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<Request>> groups;
+        private final int from;
+        private final int to;
+
+        PlanTask(List<List<Request>> groups, int from, int to) {
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Assignment> compute() {
+            if (to - from <= 1) {
+                return from < to ? planRoute(groups.get(from)) : new ArrayList<>();
+            }
+            int middle = (from + to) >>> 1;
+            PlanTask left = new PlanTask(groups, from, middle);
+            left.fork();
+            List<Assignment> result = new PlanTask(groups, middle, to).compute();
+            result.addAll(left.join());
+            return result;
+        }
+    }
+
+    // Books assignments [from, to), splitting down to APPLY_CHUNK at a time.
+    private final class ApplyTask extends RecursiveTask<List<Assignment>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Assignment> plan;
+        private final int from;
+        private final int to;
+
+        ApplyTask(List<Assignment> plan, int from, int to) {
+            this.plan = plan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Assignment> compute() {
+            if (to - from <= Math.max(1, APPLY_CHUNK)) {
+                return book(plan.subList(from, to));
+            }
+            int middle = (from + to) >>> 1;
+            ApplyTask left = new ApplyTask(plan, from, middle);
+            left.fork();
+            List<Assignment> result = new ApplyTask(plan, middle, to).compute();
+            result.addAll(left.join());
+            return result;
+        }
+    }
+
+    private List<Assignment> book(List<Assignment> chunk) {
+        List<BulkBooking.Request> bookings = new ArrayList<>(chunk.size());
+        for (Assignment assignment : chunk) {
+            bookings.add(new BulkBooking.Request(assignment.trip.id, assignment.request.user, assignment.request.seats));
+        }
+        List<BulkBooking.Outcome> outcomes = blocking(() -> engine.bookAll(bookings));
+        if (!outcomes.isEmpty() && outcomes.stream().allMatch(outcome -> outcome == BulkBooking.Outcome.BOOKED)) {
+            return new ArrayList<>(chunk);
+        }
+        List<Assignment> booked = new ArrayList<>();
+        for (Assignment assignment : chunk) {
+            Request request = assignment.request;
+            if (blocking(() -> engine.bookSeats(assignment.trip.id, request.user, request.seats))) {
+                booked.add(assignment);
+            }
+        }
+        return booked;
+    }
+
+    // Runs a call that may wait on a lock or the disk as a ForkJoinPool managed block.
+    private static <T> T blocking(Supplier<T> call) {
+        class Blocker implements ForkJoinPool.ManagedBlocker {
+            T result;
+            boolean done;
+
+            @Override
+            public boolean block() {
+                result = call.get();
+                done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done;
+            }
+        }
+        Blocker blocker = new Blocker();
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        return blocker.result;
+    }
+
+    // Plans the requests of one route against a single snapshot of its open trips.
+    private List<Assignment> planRoute(List<Request> requests) {
+        Request first = requests.get(0);
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+        for (Request request : requests) {
+            earliest = Math.min(earliest, request.earliest.getTime());
+            latest = Math.max(latest, request.latest.getTime());
+        }
+        GeoPoint pickup = GeoPoint.of(first.pickup);
+        GeoPoint dropoff = GeoPoint.of(first.dropoff);
+        boolean near = first.radiusMeters > 0 && pickup != null && dropoff != null;
+        List<Trip> trips = near
+            ? engine.searchNear(pickup, dropoff, first.radiusMeters)
+            : engine.search(first.pickup, first.dropoff, new Date(earliest), new Date(latest), false);
+
+        // both searches return trips by departure, so a window is a contiguous range
+        int n = trips.size();
+        long[] departures = new long[n];
+        int[] seatsLeft = new int[n];
+        double[] detours = new double[n];
+        for (int i = 0; i < n; i++) {
+            Trip trip = trips.get(i);
+            departures[i] = trip.departureTime.getTime();
+            seatsLeft[i] = trip.getAvailableSeats();
+            detours[i] = near ? pickup.metersToSegment(trip.originPoint, trip.destinationPoint)
+                + dropoff.metersToSegment(trip.originPoint, trip.destinationPoint) : 0;
+        }
+
+        List<Request> order = new ArrayList<>(requests);
+        order.sort(Comparator.comparingInt((Request r) -> -r.seats)
+            .thenComparingLong(r -> r.latest.getTime() - r.earliest.getTime()));
+        List<Assignment> plan = new ArrayList<>();
+        for (Request request : order) {
+            int best = -1;
+            for (int i = firstAtOrAfter(departures, request.earliest.getTime());
+                    i < n && departures[i] <= request.latest.getTime(); i++) {
+                if (seatsLeft[i] < request.seats) {
+                    continue;
+                }
+                if (best < 0 || detours[i] < detours[best]
+                        || detours[i] == detours[best] && seatsLeft[i] < seatsLeft[best]) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                seatsLeft[best] -= request.seats;
+                plan.add(new Assignment(request, trips.get(best), detours[best]));
+            }
+        }
+        return plan;
+    }
+
+    private static int firstAtOrAfter(long[] sorted, long key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
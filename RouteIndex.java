@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Secondary index over tripMap holding only bookable trips (not full, not started),
+// grouped by (origin, destination) and ordered by departure time. It is kept current
+// by listening to the TripChangeFeed, so searches cost O(matches) rather than a scan
+// of every trip.
+//
+// Each route also keeps running totals of its open trips, open seats and prices,
+// adjusted by the difference every time one of its trips changes, so dashboards read
+// them in O(routes) without touching a single trip.
+class RouteIndex implements TripChangeFeed.Listener {
+    // Totals for one route at a moment in time.
+    static final class RouteStats {
+        final int openTrips;
+        final long openSeats;
+        final double meanPrice;
+
+        RouteStats(int openTrips, long openSeats, double meanPrice) {
+            this.openTrips = openTrips;
+            this.openSeats = openSeats;
+            this.meanPrice = meanPrice;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("trips=%d seats=%d meanPrice=%.2f", openTrips, openSeats, meanPrice);
+        }
+    }
+
+    // A trip in a route, with the open seats it currently contributes to the totals.
+    private static final class Entry {
+        final Trip trip;
+        int countedSeats;
+
+        Entry(Trip trip) {
+            this.trip = trip;
+        }
+    }
+
+    // The index entries of one route. Searches read `trips` without locking; changes
+    // and the totals are guarded by the route's monitor.
+    private static final class Route {
+        final ConcurrentSkipListMap<Key, Entry> trips = new ConcurrentSkipListMap<>();
+        private long openSeats;
+        private double priceSum;
+
+        // Decides under the monitor, so that of two racing updates for one trip the
+        // later one always sees the later state.
+        synchronized void update(Key key, Trip trip) {
+            if (trip.isStarted || trip.isFull()) {
+                remove(key);
+                return;
+            }
+            Entry entry = trips.get(key);
+            if (entry == null) {
+                entry = new Entry(trip);
+                trips.put(key, entry);
+                priceSum += trip.pricePerPassenger;
+            }
+            int seats = Math.max(trip.getAvailableSeats(), 0);
+            openSeats += seats - entry.countedSeats;
+            entry.countedSeats = seats;
+        }
+
+        synchronized void remove(Key key) {
+            Entry entry = trips.remove(key);
+            if (entry != null) {
+                openSeats -= entry.countedSeats;
+                priceSum -= entry.trip.pricePerPassenger;
+            }
+        }
+
+        synchronized RouteStats stats() {
+            int count = trips.size();
+            return new RouteStats(count, openSeats, count == 0 ? 0 : priceSum / count);
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+        final long departure;
+        final String id;
+
+        Key(long departure, String id) {
+            this.departure = departure;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int c = Long.compare(departure, o.departure);
+            return c != 0 ? c : id.compareTo(o.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(departure, id);
+        }
+    }
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    static String routeKey(String origin, String destination) {
+        return origin + "->" + destination;
+    }
+
+    void rebuild(Collection<Trip> trips) {
+        routes.clear();
+        for (Trip trip : trips) {
+            update(trip);
+        }
+    }
+
+    // Adds the trip to its route if it can still be booked, otherwise drops it.
+    void update(Trip trip) {
+        String key = routeKey(trip.origin, trip.destination);
+        Route route = trip.isStarted || trip.isFull() ? routes.get(key) : routes.computeIfAbsent(key, k -> new Route());
+        if (route != null) {
+            route.update(new Key(trip.departureTime.getTime(), trip.id), trip);
+        }
+    }
+
+    void remove(Trip trip) {
+        Route route = routes.get(routeKey(trip.origin, trip.destination));
+        if (route != null) {
+            route.remove(new Key(trip.departureTime.getTime(), trip.id));
+        }
+    }
+
+    @Override
+    public void tripChanged(TripChangeFeed.TripChange change) {
+        if (change.type == TripChangeFeed.Type.REMOVED) {
+            remove(change.trip);
+        } else {
+            update(change.trip);
+        }
+    }
+
+    int openTrips() {
+        int count = 0;
+        for (Route route : routes.values()) {
+            count += route.stats().openTrips;
+        }
+        return count;
+    }
+
+    Map<String, Integer> openSeatsByRoute() {
+        Map<String, Integer> seats = new HashMap<>();
+        routes.forEach((key, route) -> {
+            long open = route.stats().openSeats;
+            if (open > 0) {
+                seats.put(key, (int) Math.min(open, Integer.MAX_VALUE));
+            }
+        });
+        return seats;
+    }
+
+    // Totals for every route that has had open trips, keyed by routeKey().
+    Map<String, RouteStats> routeStats() {
+        Map<String, RouteStats> stats = new HashMap<>();
+        routes.forEach((key, route) -> stats.put(key, route.stats()));
+        return stats;
+    }
+
+    RouteStats routeStats(String origin, String destination) {
+        Route route = routes.get(routeKey(origin, destination));
+        return route == null ? new RouteStats(0, 0, 0) : route.stats();
+    }
+
+    // Bookable trips from origin to destination, earliest departure first.
+    List<Trip> search(String origin, String destination) {
+        Route route = routes.get(routeKey(origin, destination));
+        return route == null ? Collections.emptyList() : open(route.trips.values());
+    }
+
+    // Bookable trips from origin to destination departing within [from, to].
+    List<Trip> search(String origin, String destination, Date from, Date to) {
+        Route route = routes.get(routeKey(origin, destination));
+        if (route == null) {
+            return Collections.emptyList();
+        }
+        // "" sorts before every trip id, so these bounds cover every trip at the edge times
+        Key lo = new Key(from.getTime(), "");
+        Key hi = new Key(to.getTime() + 1, "");
+        return open(route.trips.subMap(lo, true, hi, false).values());
+    }
+
+    // Trips can fill up or start between the index update and the read; filter again
+    // so callers never see a stale entry.
+    private static List<Trip> open(Collection<Entry> entries) {
+        List<Trip> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            Trip trip = entry.trip;
+            if (!trip.isStarted && !trip.isFull()) {
+                result.add(trip);
+            }
+        }
+        return result;
+    }
+}
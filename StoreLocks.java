@@ -0,0 +1,123 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Advisory locks shared by every process using one store directory. Each lock is one
+// byte of the lock file, so processes only wait for each other when they touch the
+// same thing:
+//
+//   byte 0         the trip journal: shared while appending, exclusive while compacting
+//   byte 1         users.txt and users.idx (see UserStore)
+//   byte 2 + n     trip stripe n; a trip's stripe is picked by hashing its id
+//   byte 2^32 + n  the journal of trip shard n > 0 (see TripShard), like byte 0
+//
+// Within this JVM a ReentrantLock per region is taken first, because file locks are
+// held per process and cannot keep two of our own threads apart. File locks are
+// acquired with tryLock() and retried with backoff rather than with a blocking lock(),
+// which would close the channel if the waiting thread were interrupted.
+class StoreLocks implements Closeable {
+    static final int STRIPES = Integer.getInteger("cab.lock.stripes", 64);
+    static final long TIMEOUT_MILLIS = Long.getLong("cab.lock.timeoutMillis", 10_000);
+
+    interface Action<T> {
+        T run() throws IOException;
+    }
+
+    private static final long JOURNAL = 0;
+    private static final long USERS = 1;
+    private static final long FIRST_STRIPE = 2;
+    private static final long SHARD_JOURNALS = 1L << 32;
+
+    private final FileChannel channel;
+    private final ReentrantLock users = new ReentrantLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[Math.max(1, STRIPES)];
+
+    StoreLocks(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // Runs the action while no other thread or process holds the trip's stripe.
+    <T> T withTrip(String tripId, Action<T> action) throws IOException {
+        int stripe = stripe(tripId);
+        return locked(stripes[stripe], FIRST_STRIPE + stripe, action);
+    }
+
+    // Runs the action holding the stripes of all the given trips. Stripes are always
+    // taken in ascending order, so this cannot deadlock with withTrip() or itself.
+    <T> T withTrips(Collection<String> tripIds, Action<T> action) throws IOException {
+        int[] order = tripIds.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+        return lockAll(order, 0, action);
+    }
+
+    <T> T withUsers(Action<T> action) throws IOException {
+        return locked(users, USERS, action);
+    }
+
+    // Cross-process lock on a shard's journal only; callers keep their own threads apart.
+    FileLock lockJournal(int shard, boolean shared) throws IOException {
+        return acquire(shard == 0 ? JOURNAL : SHARD_JOURNALS + shard, shared);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int stripe(String tripId) {
+        return Math.floorMod(tripId.hashCode(), stripes.length);
+    }
+
+    private <T> T lockAll(int[] order, int from, Action<T> action) throws IOException {
+        if (from == order.length) {
+            return action.run();
+        }
+        int stripe = order[from];
+        return locked(stripes[stripe], FIRST_STRIPE + stripe, () -> lockAll(order, from + 1, action));
+    }
+
+    private <T> T locked(ReentrantLock local, long position, Action<T> action) throws IOException {
+        local.lock();
+        try {
+            FileLock lock = acquire(position, false);
+            try {
+                return action.run();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    private FileLock acquire(long position, boolean shared) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        long backoff = TimeUnit.MICROSECONDS.toNanos(50);
+        while (true) {
+            try {
+                FileLock lock = channel.tryLock(position, 1, shared);
+                if (lock != null) {
+                    return lock;
+                }
+            } catch (OverlappingFileLockException e) {
+                // another thread of ours still holds it; same as a busy lock
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Timed out waiting for store lock " + position);
+            }
+            LockSupport.parkNanos(backoff);
+            backoff = Math.min(backoff * 2, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+// Demand-based price multipliers per route. Every search a rider starts and every
+// booked seat is counted against its route over a sliding window of WINDOW_SECONDS
+// (screen refreshes and pool matching search with countDemand=false), and a route's
+// multiplier weighs that demand against the seats still open on it (from RouteIndex):
+//
+//   pressure   = (seats booked + SEARCH_WEIGHT * searches) / (open seats + 1)
+//   multiplier = 1 + SENSITIVITY * (pressure - 1), kept within [1, MAX_MULTIPLIER] and
+//                rounded down to a tenth so that it does not flicker
+//
+// Counting is all the search and booking paths pay, so it takes no lock. A window is
+// BUCKETS slots, each packing the number of a time slice with the count seen in it;
+// counting is one compare-and-set on the current slice's slot, which also resets a slot
+// still holding a slice from a lap ago, and readers skip slots that have left the
+// window. The multiplier is only worked out when someone asks for it.
+//
+// Counts are per process: a TripServer sees the demand of all its clients, a desktop
+// engine only its own. With cab.surge.mode=suggest (the default) hosts are shown the
+// multiplier for the route they post on; with "apply" postTrip() also multiplies the
+// posted price by it; "off" reports 1 everywhere. A trip keeps the price it was posted
+// with.
+class SurgePricing {
+    enum Mode { OFF, SUGGEST, APPLY }
+
+    static final Mode MODE = Mode.valueOf(System.getProperty("cab.surge.mode", "suggest").toUpperCase(Locale.ROOT));
+    static final long WINDOW_MILLIS = Long.getLong("cab.surge.windowSeconds", 600) * 1000;
+    static final int BUCKETS = Integer.getInteger("cab.surge.buckets", 10);
+    static final double SEARCH_WEIGHT = Double.parseDouble(System.getProperty("cab.surge.searchWeight", "0.25"));
+    static final double SENSITIVITY = Double.parseDouble(System.getProperty("cab.surge.sensitivity", "0.25"));
+    static final double MAX_MULTIPLIER = Double.parseDouble(System.getProperty("cab.surge.max", "2.5"));
+    // Routes tracked at once; beyond this, routes without recent demand are dropped
+    static final int MAX_ROUTES = Integer.getInteger("cab.surge.maxRoutes", 10_000);
+
+    // One route's demand and supply at a moment, with the multiplier they give.
+    static final class RouteDemand {
+        final long searches;
+        final long bookedSeats;
+        final long openSeats;
+        final double multiplier;
+
+        RouteDemand(long searches, long bookedSeats, long openSeats) {
+            this.searches = searches;
+            this.bookedSeats = bookedSeats;
+            this.openSeats = openSeats;
+            double pressure = (bookedSeats + SEARCH_WEIGHT * searches) / (openSeats + 1);
+            double multiplier = Math.max(1, Math.min(MAX_MULTIPLIER, 1 + SENSITIVITY * (pressure - 1)));
+            this.multiplier = MODE == Mode.OFF ? 1 : Math.floor(multiplier * 10 + 1e-9) / 10;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("searches=%d booked=%d open=%d x%.1f", searches, bookedSeats, openSeats, multiplier);
+        }
+    }
+
+    // Counts over the last BUCKETS slices. A slot holds (slice << COUNT_BITS) | count.
+    private static final class Window {
+        private static final int COUNT_BITS = 24;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+        private final AtomicLongArray slots = new AtomicLongArray(Math.max(1, BUCKETS));
+
+        void add(long slice, int n) {
+            int i = (int) (slice % slots.length());
+            while (true) {
+                long current = slots.get(i);
+                long next = current >>> COUNT_BITS >= slice
+                    ? current + Math.min(n, COUNT_MASK - (current & COUNT_MASK))
+                    : slice << COUNT_BITS | Math.min(n, COUNT_MASK);
+                if (next == current || slots.compareAndSet(i, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        long sum(long slice) {
+            long total = 0;
+            for (int i = 0; i < slots.length(); i++) {
+                long slot = slots.get(i);
+                if (slice - (slot >>> COUNT_BITS) < slots.length()) {
+                    total += slot & COUNT_MASK;
+                }
+            }
+            return total;
+        }
+    }
+
+    private static final class Demand {
+        final String origin;
+        final String destination;
+        final Window searches = new Window();
+        final Window seats = new Window();
+
+        Demand(String origin, String destination) {
+            this.origin = origin;
+            this.destination = destination;
+        }
+    }
+
+    private final RouteIndex routes;
+    private final LongSupplier clock;
+    private final long sliceMillis = Math.max(1, WINDOW_MILLIS / Math.max(1, BUCKETS));
+    private final Map<String, Demand> demand = new ConcurrentHashMap<>();
+
+    SurgePricing(RouteIndex routes) {
+        this(routes, System::currentTimeMillis);
+    }
+
+    // With a clock of our own, e.g. the simulated time of a replayed trace.
+    SurgePricing(RouteIndex routes, LongSupplier clock) {
+        this.routes = routes;
+        this.clock = clock;
+    }
+
+    void searched(String origin, String destination) {
+        demand(origin, destination).searches.add(slice(), 1);
+    }
+
+    void booked(String origin, String destination, int seats) {
+        demand(origin, destination).seats.add(slice(), seats);
+    }
+
+    // 1 means no surge.
+    double multiplier(String origin, String destination) {
+        return demand(demand.get(RouteIndex.routeKey(origin, destination)), origin, destination, slice()).multiplier;
+    }
+
+    // The price to post a trip at: `base` times the route's multiplier in APPLY mode,
+    // to the cent, otherwise `base`.
+    double price(String origin, String destination, double base) {
+        return MODE == Mode.APPLY ? Math.round(base * multiplier(origin, destination) * 100) / 100.0 : base;
+    }
+
+    // Every route with demand in the window, keyed by RouteIndex.routeKey().
+    Map<String, RouteDemand> demandByRoute() {
+        long slice = slice();
+        Map<String, RouteDemand> result = new TreeMap<>();
+        demand.forEach((key, d) -> {
+            RouteDemand current = demand(d, d.origin, d.destination, slice);
+            if (current.searches > 0 || current.bookedSeats > 0) {
+                result.put(key, current);
+            }
+        });
+        return result;
+    }
+
+    private RouteDemand demand(Demand d, String origin, String destination, long slice) {
+        long openSeats = routes.routeStats(origin, destination).openSeats;
+        return d == null ? new RouteDemand(0, 0, openSeats) : new RouteDemand(d.searches.sum(slice), d.seats.sum(slice), openSeats);
+    }
+
+    private Demand demand(String origin, String destination) {
+        String key = RouteIndex.routeKey(origin, destination);
+        Demand d = demand.get(key);
+        if (d != null) {
+            return d;
+        }
+        if (demand.size() >= MAX_ROUTES) {
+            long slice = slice();
+            demand.values().removeIf(idle -> idle.searches.sum(slice) == 0 && idle.seats.sum(slice) == 0);
+            if (demand.size() >= MAX_ROUTES) {
+                return new Demand(origin, destination);
+            }
+        }
+        return demand.computeIfAbsent(key, k -> new Demand(origin, destination));
+    }
+
+    private long slice() {
+        return clock.getAsLong() / sliceMillis;
+    }
+}
@@ -0,0 +1,131 @@
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class Trip {
+    // DateTimeFormatter is immutable, so every row and screen can share this one.
+    static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    String id; // Add this line
+    User host;
+    String origin;
+    String destination;
+    // Where origin and destination are on the map, if they name a point (see GeoPoint).
+    final GeoPoint originPoint;
+    final GeoPoint destinationPoint;
+    Date departureTime;
+    Date arrivalTime;
+    int maxPassengers;
+    double pricePerPassenger;
+    Map<User, Integer> passengers = new ConcurrentHashMap<>();
+    volatile boolean isStarted = false;
+    // Sum of passengers.values(), kept alongside so availability is a single read.
+    // Seats are reserved here first with a CAS; passengers is only updated afterwards.
+    private final AtomicInteger bookedSeats = new AtomicInteger();
+    // Bumped after every change to passengers or isStarted, so screens can tell
+    // whether anything moved since they last looked.
+    private final AtomicLong version = new AtomicLong();
+
+    public Trip(User host, String origin, String destination, Date departureTime, Date arrivalTime, int maxPassengers, double pricePerPassenger) {
+        this(UUID.randomUUID().toString(), host, origin, destination, departureTime, arrivalTime, maxPassengers, pricePerPassenger);
+    }
+
+    // Rebuilds an existing trip under its stored id.
+    Trip(String id, User host, String origin, String destination, Date departureTime, Date arrivalTime, int maxPassengers, double pricePerPassenger) {
+        this.id = id;
+        this.host = host;
+        this.origin = origin;
+        this.destination = destination;
+        this.originPoint = GeoPoint.of(origin);
+        this.destinationPoint = GeoPoint.of(destination);
+        this.departureTime = departureTime;
+        this.arrivalTime = arrivalTime;
+        this.maxPassengers = maxPassengers;
+        this.pricePerPassenger = pricePerPassenger;
+    }
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Trip trip = (Trip) o;
+        return id.equals(trip.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+
+
+
+    public boolean bookSeats(int seats, User user) {
+        if (seats < 1) {
+            return false;
+        }
+        int booked;
+        do {
+            booked = bookedSeats.get();
+            if (maxPassengers - booked < seats) {
+                return false;
+            }
+        } while (!bookedSeats.compareAndSet(booked, booked + seats));
+        passengers.merge(user, seats, Integer::sum);
+        version.incrementAndGet();
+        return true;
+    }
+
+    public int getAvailableSeats() {
+        return maxPassengers - bookedSeats.get();
+    }
+
+
+    public boolean isFull() {
+        return getAvailableSeats() == 0;
+    }
+
+
+    public void startRide() {
+        this.isStarted = true;
+        version.incrementAndGet();
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    public int cancelBooking(User user) {
+        Integer seats = passengers.remove(user);
+        if (seats == null) {
+            return 0;
+        }
+        bookedSeats.addAndGet(-seats);
+        version.incrementAndGet();
+        return seats;
+    }
+
+    // Sets the user's seats outright, bypassing the capacity check. Used when replaying
+    // the journal, where the booking has already been accepted by its writer.
+    void setSeats(User user, int seats) {
+        Integer previous = seats > 0 ? passengers.put(user, seats) : passengers.remove(user);
+        bookedSeats.addAndGet(Math.max(seats, 0) - (previous == null ? 0 : previous));
+        version.incrementAndGet();
+    }
+
+
+
+    // Every seat is sold at pricePerPassenger, so the fare follows the seat count.
+    public double calculateTotalFare() {
+        return bookedSeats.get() * pricePerPassenger;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("From %s to %s, Departure: %s, Arrival: %s, Host: %s, Available Seats: %d, Price: $%.2f",
+                origin, destination, TIME_FORMAT.format(departureTime.toInstant()), TIME_FORMAT.format(arrivalTime.toInstant()),
+                host, getAvailableSeats(), pricePerPassenger);
+    }
+}
\ No newline at end of file
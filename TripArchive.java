@@ -0,0 +1,154 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Moves trips that arrived long ago out of tripMap and into trips.archive, so that the
+// snapshot, the journal, reloads and the route index only carry trips still in play.
+//
+// Trips are kept in a time wheel of BUCKET_MINUTES buckets keyed by arrival time, so
+// finding what is due costs O(expired trips) rather than a scan of every trip. A trip is
+// retired once it arrived more than RETAIN_HOURS ago, whether or not it was started.
+//
+// retire() runs inside TripJournal.compact(), under the exclusive journal lock: retired
+// trips are appended to the archive and fsynced before they leave the snapshot, and
+// other processes drop them when they resync with the compacted journal. A crash in
+// between can archive a trip twice, so readers keep the last copy of each id.
+//
+// The archive uses the trips.txt line format, one trip per line, oldest retirement first.
+class TripArchive implements TripChangeFeed.Listener {
+    static final long BUCKET_MINUTES = Long.getLong("cab.archive.bucketMinutes", 60);
+    static final long RETAIN_HOURS = Long.getLong("cab.archive.retainHours", 24);
+
+    private final Path file;
+    private final long bucketMillis = Math.max(1, BUCKET_MINUTES) * 60_000;
+    private final long retainMillis = Math.max(0, RETAIN_HOURS) * 3_600_000;
+    private final ConcurrentSkipListMap<Long, Set<Trip>> buckets = new ConcurrentSkipListMap<>();
+
+    TripArchive(Path file) {
+        this.file = file;
+    }
+
+    long bucketMillis() {
+        return bucketMillis;
+    }
+
+    void rebuild(Collection<Trip> trips) {
+        buckets.clear();
+        for (Trip trip : trips) {
+            add(trip);
+        }
+    }
+
+    @Override
+    public void tripChanged(TripChangeFeed.TripChange change) {
+        if (change.type == TripChangeFeed.Type.POSTED) {
+            add(change.trip);
+        } else if (change.type == TripChangeFeed.Type.REMOVED) {
+            Set<Trip> bucket = buckets.get(bucketOf(change.trip));
+            if (bucket != null) {
+                bucket.remove(change.trip);
+            }
+        }
+    }
+
+    // True if some bucket holds only trips that are due for retirement.
+    boolean due(long now) {
+        Map.Entry<Long, Set<Trip>> first = buckets.firstEntry();
+        return first != null && first.getKey() + bucketMillis <= now - retainMillis;
+    }
+
+    // Archives every trip due at `now`, then removes it from tripMap and publishes the
+    // removal. Returns the number of trips retired. Each due bucket is taken out of the
+    // wheel before it is read, so a trip added meanwhile is either in it or in a new
+    // bucket left for the next round; if the archive cannot be written they go back.
+    int retire(Map<String, Trip> tripMap, TripChangeFeed feed, long now) throws IOException {
+        long cutoff = now - retainMillis;
+        List<Trip> retired = new ArrayList<>();
+        for (Map.Entry<Long, Set<Trip>> first; (first = buckets.firstEntry()) != null
+                && first.getKey() <= cutoff - bucketMillis; ) {
+            Set<Trip> bucket = buckets.remove(first.getKey());
+            if (bucket == null) {
+                continue;
+            }
+            for (Trip trip : bucket) {
+                if (trip.arrivalTime.getTime() <= cutoff && tripMap.get(trip.id) == trip) {
+                    retired.add(trip);
+                }
+            }
+        }
+        if (retired.isEmpty()) {
+            return 0;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Trip trip : retired) {
+            lines.append(TripJournal.formatTrip(trip)).append('\n');
+        }
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(false);
+        } catch (IOException e) {
+            for (Trip trip : retired) {
+                add(trip);
+            }
+            throw e;
+        }
+        for (Trip trip : retired) {
+            if (tripMap.remove(trip.id, trip)) {
+                feed.publish(TripChangeFeed.Type.REMOVED, trip);
+            }
+        }
+        return retired.size();
+    }
+
+    // Archived trips from origin to destination that departed within [from, to],
+    // earliest first. Reads the whole archive; meant for history lookups, not hot paths.
+    List<Trip> search(String origin, String destination, Date from, Date to, Function<String, User> users) throws IOException {
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        Map<String, Trip> found = new LinkedHashMap<>();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            CsvRecordReader line = CsvRecordReader.open(in);
+            while (line.next()) {
+                if (line.fields() < 9 || !line.is(2, origin) || !line.is(3, destination)) {
+                    continue;
+                }
+                long departure = line.parseLong(4);
+                if (departure < from.getTime() || departure > to.getTime()) {
+                    continue;
+                }
+                Trip trip = TripJournal.parseTrip(line, 0, users);
+                if (trip != null) {
+                    found.put(trip.id, trip);
+                }
+            }
+        }
+        List<Trip> trips = new ArrayList<>(found.values());
+        trips.sort(Comparator.comparing(trip -> trip.departureTime));
+        return trips;
+    }
+
+    // Added inside compute() so that retire() taking the bucket cannot lose the trip.
+    private void add(Trip trip) {
+        buckets.compute(bucketOf(trip), (key, bucket) -> {
+            bucket = bucket == null ? ConcurrentHashMap.newKeySet() : bucket;
+            bucket.add(trip);
+            return bucket;
+        });
+    }
+
+    private long bucketOf(Trip trip) {
+        long arrival = trip.arrivalTime.getTime();
+        return arrival - Math.floorMod(arrival, bucketMillis);
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// In-process change feed for trips. Every mutation to tripMap, whether made locally or
+// picked up from another process through the trip journal, is published here with a
+// monotonically increasing sequence number. Listeners are told about each change as it
+// happens, or only about one trip through watch(); pollers can ask for everything after
+// the last sequence number they saw.
+class TripChangeFeed {
+    enum Type { POSTED, BOOKED, STARTED, REMOVED }
+
+    static class TripChange {
+        final long seq;
+        final Type type;
+        final Trip trip;
+
+        TripChange(long seq, Type type, Trip trip) {
+            this.seq = seq;
+            this.type = type;
+            this.trip = trip;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + seq + " " + type + " " + trip.id;
+        }
+    }
+
+    interface Listener {
+        void tripChanged(TripChange change);
+    }
+
+    private static final int HISTORY = 4096;
+
+    private final TripChange[] history = new TripChange[HISTORY];
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, List<Listener>> tripListeners = new ConcurrentHashMap<>();
+    private long seq = 0;
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Calls the listener for changes to one trip only. Run the returned handle to stop.
+    Runnable watch(String tripId, Listener listener) {
+        // Added inside compute() so that another watcher leaving cannot drop the list in between
+        tripListeners.compute(tripId, (id, watchers) -> {
+            watchers = watchers == null ? new CopyOnWriteArrayList<>() : watchers;
+            watchers.add(listener);
+            return watchers;
+        });
+        return () -> tripListeners.computeIfPresent(tripId, (id, watchers) -> {
+            watchers.remove(listener);
+            return watchers.isEmpty() ? null : watchers;
+        });
+    }
+
+    TripChange publish(Type type, Trip trip) {
+        TripChange change;
+        synchronized (this) {
+            change = new TripChange(++seq, type, trip);
+            history[(int) (change.seq % HISTORY)] = change;
+        }
+        for (Listener listener : listeners) {
+            listener.tripChanged(change);
+        }
+        List<Listener> watchers = tripListeners.get(trip.id);
+        if (watchers != null) {
+            for (Listener listener : watchers) {
+                listener.tripChanged(change);
+            }
+        }
+        return change;
+    }
+
+    synchronized long lastSeq() {
+        return seq;
+    }
+
+    // Changes published after sinceSeq, oldest first. Returns null if the caller has
+    // fallen so far behind that part of the history was overwritten; it should then
+    // re-read the full trip map and continue from lastSeq().
+    synchronized List<TripChange> changesSince(long sinceSeq) {
+        if (sinceSeq >= seq) {
+            return Collections.emptyList();
+        }
+        if (seq - sinceSeq > HISTORY) {
+            return null;
+        }
+        List<TripChange> changes = new ArrayList<>((int) (seq - sinceSeq));
+        for (long s = sinceSeq + 1; s <= seq; s++) {
+            changes.add(history[(int) (s % HISTORY)]);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,480 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Append-only log of trip events on top of the trips.txt snapshot (or a binary
+// TripSnapshotCodec snapshot when the snapshot file name ends in ".bin").
+// Every post, booking and ride start appends one line to the journal instead of
+// rewriting the whole snapshot; the journal is folded back into the snapshot
+// every COMPACT_EVERY events. Loading is snapshot + replay.
+//
+// Journal lines:
+//   G,<generation>                             first line after each compaction
+//   P,<origin>,<snapshot line>                 trip posted
+//   B,<origin>,<tripId>,<username>,<seats>     user now holds <seats> seats on the trip
+//   M,<origin>,<tripId>,<username>,<seats>,... several B events that stand or fall
+//                                              together (one line, so a torn write
+//                                              loses all of them)
+//   S,<origin>,<tripId>                        ride started
+//   C,<origin>,<tripId>                        trip cancelled by its host
+//
+// Booking events carry the user's total seats rather than a delta so that replay is
+// idempotent: if we crash after the snapshot is replaced but before the journal is
+// truncated, replaying the old journal over the new snapshot gives the same state.
+//
+// Appends are write-behind: the event methods queue the change and return at once, and
+// a single writer thread turns whatever has queued up into one write and one fsync (see
+// WriteBehindQueue). Lines are built when they are written, so a booking line records
+// the user's seats as of the write, and compaction runs on the writer thread as well.
+//
+// Other processes sharing the files are followed by tailing the journal from the last
+// byte offset we read (see poll()). <origin> identifies the writing process so that we
+// skip our own events, and the generation line tells us when someone else compacted
+// the journal out from under us.
+//
+// Given StoreLocks, appends hold the journal lock shared and compaction holds it
+// exclusively from its catch-up poll() to the truncate, so no process can append an
+// event that the new snapshot misses and the truncate then throws away.
+class TripJournal {
+    static final int SYNC_EVERY = Integer.getInteger("cab.journal.syncEvery", 1);
+    static final int COMPACT_EVERY = Integer.getInteger("cab.journal.compactEvery", 1000);
+    static final int QUEUE_CAPACITY = Integer.getInteger("cab.journal.queueCapacity", 10_000);
+
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final int syncEvery;
+    private final int compactEvery;
+    private final boolean binarySnapshot;
+    private final StoreLocks locks;
+    private final int shard;
+
+    private final String origin = Long.toHexString(new Random().nextLong());
+    private final WriteBehindQueue<Supplier<String>> writes;
+    // Ids of trips with events queued but not yet written, with how many. resync() leaves
+    // these trips as they are: our copy is ahead of the files, and the queued lines are
+    // built from it when they are written.
+    private final Map<String, Integer> unwritten = new ConcurrentHashMap<>();
+    private volatile Runnable compactor;
+
+    private FileChannel channel;
+    private int unsynced = 0;
+    private int sinceCompaction = 0;
+    private long readOffset = 0;
+    private String generation;
+
+    // `shard` picks the journal lock in StoreLocks; see TripShard.
+    TripJournal(Path snapshotPath, Path journalPath, int syncEvery, int compactEvery, StoreLocks locks, int shard) {
+        this.locks = locks;
+        this.shard = shard;
+        this.snapshotPath = snapshotPath;
+        this.journalPath = journalPath;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.compactEvery = Math.max(1, compactEvery);
+        this.binarySnapshot = snapshotPath.getFileName().toString().endsWith(".bin");
+        this.writes = new WriteBehindQueue<>(shard == 0 ? "trip-journal" : "trip-journal-" + shard, QUEUE_CAPACITY, this::flush);
+    }
+
+    // Called on the writer thread whenever enough events have been appended since the
+    // last compaction; expected to call compact().
+    void setCompactor(Runnable compactor) {
+        this.compactor = compactor;
+    }
+
+    // Rebuilds tripMap from the snapshot followed by the journal.
+    synchronized void load(Function<String, User> users, Map<String, Trip> tripMap) throws IOException {
+        tripMap.clear();
+        if (Files.exists(snapshotPath) && TripSnapshotCodec.isBinary(snapshotPath)) {
+            TripSnapshotCodec.read(snapshotPath, users, tripMap);
+        } else if (Files.exists(snapshotPath)) {
+            try (FileChannel in = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                CsvRecordReader reader = CsvRecordReader.open(in);
+                while (reader.next()) {
+                    Trip trip = parseTrip(reader, 0, users);
+                    if (trip != null) {
+                        tripMap.put(trip.id, trip);
+                    }
+                }
+            }
+        }
+        sinceCompaction = 0;
+        readOffset = 0;
+        generation = null;
+        readJournal(users, tripMap, null);
+    }
+
+    // Applies journal events written by other processes since the last load or poll to
+    // the trips already in tripMap, publishing each one to the feed. Existing Trip
+    // objects are updated in place so references held elsewhere stay valid.
+    synchronized void poll(Function<String, User> users, Map<String, Trip> tripMap, TripChangeFeed feed) throws IOException {
+        long size = Files.exists(journalPath) ? Files.size(journalPath) : 0;
+        if (size < readOffset || !Objects.equals(readGeneration(), generation)) {
+            resync(users, tripMap, feed);
+        } else if (size > readOffset) {
+            readJournal(users, tripMap, feed);
+        }
+    }
+
+    CompletableFuture<Void> tripPosted(Trip trip) {
+        return submit(Collections.singleton(trip), () -> "P," + origin + "," + formatTrip(trip));
+    }
+
+    CompletableFuture<Void> seatsBooked(Trip trip, User user) {
+        return submit(Collections.singleton(trip), () -> "B," + origin + "," + trip.id + "," + user.username + ","
+            + trip.passengers.getOrDefault(user, 0));
+    }
+
+    // One M line for a bulk booking: each user's seats on each trip as of the write.
+    CompletableFuture<Void> seatsBooked(Map<Trip, Set<User>> bookings) {
+        return submit(bookings.keySet(), () -> {
+            StringBuilder line = new StringBuilder("M,").append(origin);
+            bookings.forEach((trip, users) -> {
+                for (User user : users) {
+                    line.append(',').append(trip.id).append(',').append(user.username)
+                        .append(',').append(trip.passengers.getOrDefault(user, 0));
+                }
+            });
+            return line.toString();
+        });
+    }
+
+    CompletableFuture<Void> tripStarted(Trip trip) {
+        return submit(Collections.singleton(trip), () -> "S," + origin + "," + trip.id);
+    }
+
+    CompletableFuture<Void> tripCancelled(Trip trip) {
+        return submit(Collections.singleton(trip), () -> "C," + origin + "," + trip.id);
+    }
+
+    // Queues an event about the given trips, counting them as unwritten until the
+    // returned future completes.
+    private CompletableFuture<Void> submit(Collection<Trip> trips, Supplier<String> line) {
+        List<String> ids = new ArrayList<>(trips.size());
+        for (Trip trip : trips) {
+            ids.add(trip.id);
+            unwritten.merge(trip.id, 1, Integer::sum);
+        }
+        return writes.submit(line).whenComplete((done, failed) -> {
+            for (String id : ids) {
+                unwritten.computeIfPresent(id, (k, n) -> n == 1 ? null : n - 1);
+            }
+        });
+    }
+
+    // Completes once every event queued before the call is written and fsynced.
+    CompletableFuture<Void> sync() {
+        return writes.sync();
+    }
+
+    // Catches up with other processes, moves trips that are due into the archive (if
+    // given), writes the resulting state as a new snapshot and empties the journal.
+    // Returns the number of trips archived.
+    synchronized int compact(Function<String, User> users, Map<String, Trip> tripMap, TripChangeFeed feed,
+                             TripArchive archive) throws IOException {
+        FileLock lock = locks == null ? null : locks.lockJournal(shard, false);
+        try {
+            poll(users, tripMap, feed);
+            int archived = archive == null ? 0 : archive.retire(tripMap, feed, System.currentTimeMillis());
+            writeSnapshot(tripMap.values());
+            return archived;
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+        }
+    }
+
+    private void writeSnapshot(Collection<Trip> trips) throws IOException {
+        Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        if (binarySnapshot) {
+            TripSnapshotCodec.write(trips, tmp);
+        } else {
+            writeCsvSnapshot(trips, tmp);
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = Long.toHexString(new Random().nextLong());
+        byte[] header = ("G," + generation + "\n").getBytes(StandardCharsets.UTF_8);
+        openChannel().truncate(0);
+        channel.write(ByteBuffer.wrap(header));
+        channel.force(true);
+        readOffset = header.length;
+        unsynced = 0;
+        sinceCompaction = 0;
+    }
+
+    private static void writeCsvSnapshot(Collection<Trip> trips, Path file) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8));
+            for (Trip trip : trips) {
+                writer.write(formatTrip(trip));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.force(true);
+        }
+    }
+
+    boolean needsCompaction() {
+        return sinceCompaction >= compactEvery;
+    }
+
+    // Drains the write-behind queue, then closes the journal.
+    void close() throws IOException {
+        writes.close();
+        synchronized (this) {
+            if (channel != null) {
+                if (unsynced > 0) {
+                    channel.force(false);
+                }
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    // Writer thread: appends a batch of queued events with a single write, fsyncing once
+    // every syncEvery events or when someone is waiting on sync().
+    private synchronized void flush(List<Supplier<String>> batch) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        boolean syncRequested = false;
+        for (Supplier<String> event : batch) {
+            if (event == null) {
+                syncRequested = true;
+                continue;
+            }
+            lines.append(event.get()).append('\n');
+            sinceCompaction++;
+            unsynced++;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        FileChannel ch = openChannel();
+        FileLock lock = locks == null || !buf.hasRemaining() ? null : locks.lockJournal(shard, true);
+        try {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+        }
+        if (unsynced >= syncEvery || (syncRequested && unsynced > 0)) {
+            ch.force(false);
+            unsynced = 0;
+        }
+        Runnable compact = compactor;
+        if (compact != null && needsCompaction()) {
+            compact.run();
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    // Reads complete lines from readOffset to the end of the journal. A trailing partial
+    // line (a write in progress in another process) is left for the next poll.
+    private void readJournal(Function<String, User> users, Map<String, Trip> tripMap, TripChangeFeed feed) throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+        ByteBuffer tail;
+        try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            long length = in.size() - readOffset;
+            if (length <= 0) {
+                return;
+            }
+            tail = ByteBuffer.allocate(Math.toIntExact(length));
+            while (tail.hasRemaining() && in.read(tail, readOffset + tail.position()) > 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+            tail.flip();
+        }
+        CsvRecordReader reader = new CsvRecordReader(tail, readOffset, true);
+        while (reader.next()) {
+            if (replay(reader, users, tripMap, feed)) {
+                sinceCompaction++;
+            }
+            readOffset = reader.position();
+        }
+    }
+
+    private String readGeneration() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalPath)) {
+            String first = reader.readLine();
+            return first != null && first.startsWith("G,") ? first.substring(2) : null;
+        }
+    }
+
+    // Someone else compacted the journal: reload from scratch into a side map and fold
+    // the result into tripMap without replacing Trip objects we already hand out. Trips
+    // with unwritten events of ours are skipped; reverting them to the files would make
+    // their queued lines record the reverted state.
+    private void resync(Function<String, User> users, Map<String, Trip> tripMap, TripChangeFeed feed) throws IOException {
+        Map<String, Trip> fresh = new HashMap<>();
+        load(users, fresh);
+        for (Trip loaded : fresh.values()) {
+            if (unwritten.containsKey(loaded.id)) {
+                continue;
+            }
+            Trip existing = tripMap.get(loaded.id);
+            if (existing == null) {
+                tripMap.put(loaded.id, loaded);
+                feed.publish(TripChangeFeed.Type.POSTED, loaded);
+            } else {
+                merge(existing, loaded, feed);
+            }
+        }
+        for (Iterator<Trip> it = tripMap.values().iterator(); it.hasNext(); ) {
+            Trip trip = it.next();
+            if (!fresh.containsKey(trip.id) && !unwritten.containsKey(trip.id)) {
+                it.remove();
+                feed.publish(TripChangeFeed.Type.REMOVED, trip);
+            }
+        }
+    }
+
+    // Brings an existing trip up to date with a freshly read copy of it, publishing what
+    // changed.
+    static void merge(Trip existing, Trip loaded, TripChangeFeed feed) {
+        if (!existing.passengers.equals(loaded.passengers)) {
+            for (User user : new ArrayList<>(existing.passengers.keySet())) {
+                if (!loaded.passengers.containsKey(user)) {
+                    existing.setSeats(user, 0);
+                }
+            }
+            loaded.passengers.forEach(existing::setSeats);
+            feed.publish(TripChangeFeed.Type.BOOKED, existing);
+        }
+        if (loaded.isStarted && !existing.isStarted) {
+            existing.startRide();
+            feed.publish(TripChangeFeed.Type.STARTED, existing);
+        }
+    }
+
+    // Applies the reader's current journal line. When tailing (feed given) our own events
+    // are already in memory and are skipped; everything else is published to the feed.
+    // Returns false if the line was skipped or cannot be resolved.
+    private boolean replay(CsvRecordReader line, Function<String, User> users, Map<String, Trip> tripMap, TripChangeFeed feed) {
+        if (line.fields() < 2) {
+            return false;
+        }
+        if (line.is(0, "G")) {
+            generation = line.string(1);
+            return false;
+        }
+        if (line.fields() < 3 || (feed != null && line.is(1, origin))) {
+            return false;
+        }
+        Trip trip;
+        TripChangeFeed.Type type;
+        if (line.is(0, "P")) {
+            trip = parseTrip(line, 2, users);
+            if (trip == null || tripMap.putIfAbsent(trip.id, trip) != null) return false;
+            type = TripChangeFeed.Type.POSTED;
+        } else if (line.is(0, "B")) {
+            trip = tripMap.get(line.string(2));
+            if (trip == null || line.fields() < 5) return false;
+            User user = users.apply(line.intern(3));
+            if (user == null) return false;
+            trip.setSeats(user, line.parseInt(4));
+            type = TripChangeFeed.Type.BOOKED;
+        } else if (line.is(0, "M")) {
+            Set<Trip> booked = new LinkedHashSet<>();
+            for (int i = 2; i + 2 < line.fields(); i += 3) {
+                Trip bookedTrip = tripMap.get(line.string(i));
+                User user = users.apply(line.intern(i + 1));
+                if (bookedTrip != null && user != null) {
+                    bookedTrip.setSeats(user, line.parseInt(i + 2));
+                    booked.add(bookedTrip);
+                }
+            }
+            if (feed != null) {
+                for (Trip bookedTrip : booked) {
+                    feed.publish(TripChangeFeed.Type.BOOKED, bookedTrip);
+                }
+            }
+            return !booked.isEmpty();
+        } else if (line.is(0, "S")) {
+            trip = tripMap.get(line.string(2));
+            if (trip == null) return false;
+            trip.startRide();
+            type = TripChangeFeed.Type.STARTED;
+        } else if (line.is(0, "C")) {
+            trip = tripMap.remove(line.string(2));
+            if (trip == null) return false;
+            type = TripChangeFeed.Type.REMOVED;
+        } else {
+            return false;
+        }
+        if (feed != null) {
+            feed.publish(type, trip);
+        }
+        return true;
+    }
+
+    static String formatTrip(Trip trip) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.join(",",
+            trip.id,
+            trip.host.username,
+            trip.origin,
+            trip.destination,
+            String.valueOf(trip.departureTime.getTime()),
+            String.valueOf(trip.arrivalTime.getTime()),
+            String.valueOf(trip.maxPassengers),
+            String.valueOf(trip.pricePerPassenger),
+            String.valueOf(trip.isStarted)
+        ));
+        for (Map.Entry<User, Integer> entry : trip.passengers.entrySet()) {
+            sb.append(",").append(entry.getKey().username).append(",").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    // Parses a snapshot line starting at field `from`; returns null if the line is
+    // malformed or the host is unknown.
+    static Trip parseTrip(CsvRecordReader line, int from, Function<String, User> users) {
+        if (line.fields() - from < 9) {
+            return null;
+        }
+        User host = users.apply(line.intern(from + 1));
+        if (host == null) {
+            return null;
+        }
+        Trip trip = new Trip(
+            line.string(from),
+            host,
+            line.intern(from + 2),
+            line.intern(from + 3),
+            new Date(line.parseLong(from + 4)),
+            new Date(line.parseLong(from + 5)),
+            line.parseInt(from + 6),
+            line.parseDouble(from + 7)
+        );
+        trip.isStarted = line.parseBoolean(from + 8);
+        for (int i = from + 9; i + 1 < line.fields(); i += 2) {
+            User passenger = users.apply(line.intern(i));
+            if (passenger != null) {
+                trip.setSeats(passenger, line.parseInt(i + 1));
+            }
+        }
+        return trip;
+    }
+}
@@ -0,0 +1,122 @@
+import java.awt.Component;
+import java.util.*;
+import javax.swing.*;
+
+// ListModel for search results that can be replaced wholesale without redrawing the
+// whole list. setTrips() diffs the new results against the rows on screen, keeping the
+// unchanged head and tail and firing one removed/added/changed event for the part in
+// between, plus change events for rows whose trip was updated in place (a booking).
+// Selection and scroll position survive a refresh that did not touch them.
+//
+// Row text is cached per row and rebuilt only when the trip's version() moves, and the
+// list is given fixed cell sizes (see install()), so painting touches only the visible
+// rows and tens of thousands of results scroll smoothly.
+class TripListModel extends AbstractListModel<Trip> {
+    private static final long serialVersionUID = 1L;
+
+    private List<Trip> rows = new ArrayList<>();
+    private long[] versions = new long[0];
+    private String[] text = new String[0];
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public Trip getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    // Display text for a row, rebuilt only if the trip changed since it was last shown.
+    String textAt(int index) {
+        Trip trip = rows.get(index);
+        long version = trip.version();
+        if (text[index] == null || versions[index] != version) {
+            versions[index] = version;
+            text[index] = trip.toString();
+        }
+        return text[index];
+    }
+
+    // Must be called on the EDT.
+    void setTrips(List<Trip> fresh) {
+        List<Trip> old = rows;
+        long[] oldVersions = versions;
+        String[] oldText = text;
+        int oldSize = old.size();
+        int newSize = fresh.size();
+
+        int head = 0;
+        while (head < oldSize && head < newSize && old.get(head) == fresh.get(head)) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < oldSize - head && tail < newSize - head
+                && old.get(oldSize - 1 - tail) == fresh.get(newSize - 1 - tail)) {
+            tail++;
+        }
+
+        // carry the cached text of the unchanged head and tail over to the new rows
+        rows = new ArrayList<>(fresh);
+        versions = new long[newSize];
+        text = new String[newSize];
+        System.arraycopy(oldVersions, 0, versions, 0, head);
+        System.arraycopy(oldText, 0, text, 0, head);
+        System.arraycopy(oldVersions, oldSize - tail, versions, newSize - tail, tail);
+        System.arraycopy(oldText, oldSize - tail, text, newSize - tail, tail);
+
+        int oldMiddle = oldSize - head - tail;
+        int newMiddle = newSize - head - tail;
+        if (oldMiddle == newMiddle) {
+            if (newMiddle > 0) {
+                fireContentsChanged(this, head, head + newMiddle - 1);
+            }
+        } else {
+            if (oldMiddle > 0) {
+                fireIntervalRemoved(this, head, head + oldMiddle - 1);
+            }
+            if (newMiddle > 0) {
+                fireIntervalAdded(this, head, head + newMiddle - 1);
+            }
+        }
+        fireUpdated(0, head);
+        fireUpdated(newSize - tail, newSize);
+    }
+
+    // Fires a change event for each run of rows in [from, to) whose trip moved on since
+    // its text was cached.
+    private void fireUpdated(int from, int to) {
+        int run = -1;
+        for (int i = from; i < to; i++) {
+            boolean stale = text[i] != null && versions[i] != rows.get(i).version();
+            if (stale && run < 0) {
+                run = i;
+            } else if (!stale && run >= 0) {
+                fireContentsChanged(this, run, i - 1);
+                run = -1;
+            }
+        }
+        if (run >= 0) {
+            fireContentsChanged(this, run, to - 1);
+        }
+    }
+
+    // Shows this model in the list with cached row text. Fixed cell sizes stop JList from
+    // rendering every row to measure it; rows still stretch to the viewport's width.
+    void install(JList<Trip> list) {
+        list.setModel(this);
+        DefaultListCellRenderer renderer = new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int index,
+                                                          boolean selected, boolean focused) {
+                Object shown = index >= 0 && index < rows.size() ? textAt(index) : value;
+                return super.getListCellRendererComponent(l, shown, index, selected, focused);
+            }
+        };
+        list.setCellRenderer(renderer);
+        list.setFixedCellHeight(renderer.getListCellRendererComponent(list, "X", 0, false, false)
+            .getPreferredSize().height);
+        list.setFixedCellWidth(1);
+    }
+}
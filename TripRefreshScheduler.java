@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+
+// Pushes trip changes to the screens showing them. A screen subscribes with the trip
+// and a refresh callback and cancels the subscription when it is left. Each change
+// published on the feed for that trip (a seat booked, the ride started, whether here or
+// in another process picked up from the journal) schedules one refresh on the EDT;
+// changes arriving while a refresh is pending are folded into it, and the refresh is
+// skipped if the trip's version has not actually moved. A trip that is removed (cancelled
+// or archived) keeps its version, so that calls `removed` instead, once, and ends the
+// subscription.
+//
+// Subscribe before the screen's first render: the version is read on subscribing, so a
+// change landing in between is then either in the render or refreshed after it.
+class TripRefreshScheduler {
+    final class Subscription {
+        private final Trip trip;
+        private final Runnable refresh;
+        private final Runnable removed;
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private final Runnable unwatch;
+        private volatile boolean cancelled = false;
+        private volatile boolean gone = false;
+        private long seenVersion;
+
+        private Subscription(Trip trip, Runnable refresh, Runnable removed) {
+            this.trip = trip;
+            this.refresh = refresh;
+            this.removed = removed;
+            this.seenVersion = trip.version();
+            this.unwatch = feed.watch(trip.id, change -> {
+                if (change.type == TripChangeFeed.Type.REMOVED) {
+                    gone = true;
+                }
+                if (pending.compareAndSet(false, true)) {
+                    SwingUtilities.invokeLater(this::run);
+                }
+            });
+        }
+
+        void cancel() {
+            cancelled = true;
+            unwatch.run();
+        }
+
+        private void run() {
+            pending.set(false);
+            if (cancelled) {
+                return;
+            }
+            if (gone) {
+                cancel();
+                removed.run();
+                return;
+            }
+            long version = trip.version();
+            if (version != seenVersion) {
+                seenVersion = version;
+                refresh.run();
+            }
+        }
+    }
+
+    private final TripChangeFeed feed;
+
+    TripRefreshScheduler(TripChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    // Must be called on the EDT; refresh and removed also run there.
+    Subscription subscribe(Trip trip, Runnable refresh, Runnable removed) {
+        return new Subscription(trip, refresh, removed);
+    }
+}
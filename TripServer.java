@@ -0,0 +1,401 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves one RideMatchingEngine to any number of thin clients (see
+// RemoteRideMatchingEngine) over a line protocol on a local TCP port, so that trips and
+// users live in a single process instead of in every user's JVM.
+//
+// Each request is one line of comma-separated fields. The reply is zero or more data
+// lines followed by exactly one status line:
+//
+//   U,<name>,<username>,<role>,<phone>     a user referred to by the trips that follow;
+//                                          sent once per connection, never with a password
+//   T,<snapshot line>                      a trip, in the trips.txt format
+//   A,<snapshot line>                      an archived trip, same format
+//   R,<outcome>                            a BulkBooking.Outcome, one per BULK item
+//   S,<multiplier>                         a route's surge multiplier
+//   OK | NO | ERR,<message>                done / refused / failed
+//
+// Requests:
+//   LOGIN,<username>,<password>                                   -> U, OK | NO
+//   SIGNUP,<name>,<username>,<password>,<role>,<phone>            -> U, OK | NO
+//   POST,<host>,<origin>,<destination>,<departure>,<arrival>,<maxPassengers>,<price>
+//   SEARCH,<origin>,<destination>[,<from>,<to>]                   -> T..., OK
+//   LOOKUP,<origin>,<destination>[,<from>,<to>]   as SEARCH, not counted as demand
+//   NEAR,<pickup>,<dropoff>,<radiusMeters>                        -> T..., OK
+//   GET,<tripId>  |  FULL,<host>                                  -> T, OK | NO
+//   HOSTED,<host>                                                 -> T..., OK
+//   HISTORY,<origin>,<destination>,<from>,<to>                    -> A..., OK
+//   SURGE,<origin>,<destination>                                  -> S, OK
+//   BOOK,<tripId>,<username>,<seats>  |  UNBOOK,<tripId>,<username>
+//   BULK,<tripId>,<username>,<seats>,...                          -> R..., T..., OK | NO
+//   CANCEL,<tripId>,<host>  |  START,<tripId>
+//   SYNC                                                          -> OK | ERR
+//   WATCH             turns the connection into a change stream: E,<type>,<snapshot
+//                     line> per change (with U lines as needed) until it is closed
+//
+// Times are epoch millis. Users named in a request must have logged in or signed up on
+// the same connection, and START, CANCEL and POST are only accepted from the trip's host.
+//
+// Connections are served on virtual threads when the JVM has them (JDK 21+) and on a
+// cached pool of platform threads otherwise.
+class TripServer implements Closeable {
+    static final int DEFAULT_PORT = Integer.getInteger("cab.server.port", 7420);
+    // Changes a watcher may fall behind by before it is disconnected
+    static final int WATCH_BACKLOG = Integer.getInteger("cab.server.watchBacklog", 10_000);
+
+    private final RideMatchingEngine engine;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = newConnectionExecutor();
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        RideMatchingEngine engine = new LocalRideMatchingEngine(Paths.get(args.length > 1 ? args[1] : ""));
+        TripServer server = new TripServer(engine, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            engine.close();
+        }));
+        Log.info(() -> "Trip server listening on port " + server.port());
+        server.run();
+    }
+
+    TripServer(RideMatchingEngine engine, int port) throws IOException {
+        this.engine = engine;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Accepts connections until the server is closed.
+    void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                open.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.warn(() -> "Trip server could not accept a connection: " + e);
+                }
+            }
+        }
+    }
+
+    // Starts run() on a background thread.
+    TripServer start() {
+        Thread acceptor = new Thread(this::run, "trip-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.warn(() -> "Trip server could not close its socket: " + e);
+        }
+        for (Socket socket : open) {
+            closeQuietly(socket);
+        }
+        connections.shutdownNow();
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "trip-server-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Per-connection state: who has logged in, and which users the client already knows.
+    private static final class Session {
+        final Map<String, User> users = new HashMap<>();
+        final Set<String> sentUsers = new HashSet<>();
+        final Writer out;
+
+        Session(Writer out) {
+            this.out = out;
+        }
+
+        void user(User user) throws IOException {
+            if (sentUsers.add(user.username)) {
+                out.write(String.join(",", "U", user.name, user.username, user.role, user.phone));
+                out.write('\n');
+            }
+        }
+
+        void trip(String tag, Trip trip) throws IOException {
+            user(trip.host);
+            for (User passenger : trip.passengers.keySet()) {
+                user(passenger);
+            }
+            out.write(tag);
+            out.write(',');
+            out.write(TripJournal.formatTrip(trip));
+            out.write('\n');
+        }
+
+        void status(boolean ok) throws IOException {
+            out.write(ok ? "OK\n" : "NO\n");
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            Session session = new Session(out);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split(",", -1);
+                if (f[0].equals("WATCH")) {
+                    watch(socket, in, session);
+                    return;
+                }
+                try {
+                    handle(f, session);
+                } catch (RuntimeException e) {
+                    out.write("ERR," + String.valueOf(e.getMessage()).replace('\n', ' ') + "\n");
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (IOException e) {
+            Log.warn(() -> "Connection failed: " + e);
+        } finally {
+            open.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private void handle(String[] f, Session session) throws IOException {
+        switch (f[0]) {
+            case "LOGIN": {
+                User user = f.length == 3 ? engine.login(f[1], f[2]) : null;
+                if (user != null) {
+                    session.users.put(user.username, user);
+                    session.user(user);
+                }
+                session.status(user != null);
+                break;
+            }
+            case "SIGNUP": {
+                User user = f.length == 6 ? engine.signUp(f[1], f[2], f[3], f[4], f[5]) : null;
+                if (user != null) {
+                    session.users.put(user.username, user);
+                    session.user(user);
+                }
+                session.status(user != null);
+                break;
+            }
+            case "POST": {
+                User host = f.length == 8 ? session.users.get(f[1]) : null;
+                Trip trip = host == null ? null : engine.postTrip(host, f[2], f[3], new Date(Long.parseLong(f[4])),
+                    new Date(Long.parseLong(f[5])), Integer.parseInt(f[6]), Double.parseDouble(f[7]));
+                reply(session, trip);
+                break;
+            }
+            case "SEARCH":
+            case "LOOKUP": {
+                boolean countDemand = f[0].equals("SEARCH");
+                List<Trip> trips = f.length == 5
+                    ? engine.search(f[1], f[2], new Date(Long.parseLong(f[3])), new Date(Long.parseLong(f[4])), countDemand)
+                    : f.length == 3 ? engine.search(f[1], f[2], countDemand) : Collections.emptyList();
+                for (Trip trip : trips) {
+                    session.trip("T", trip);
+                }
+                session.status(true);
+                break;
+            }
+            case "NEAR": {
+                GeoPoint pickup = f.length == 4 ? GeoPoint.of(f[1]) : null;
+                GeoPoint dropoff = f.length == 4 ? GeoPoint.of(f[2]) : null;
+                List<Trip> trips = pickup == null || dropoff == null ? Collections.emptyList()
+                    : engine.searchNear(pickup, dropoff, Double.parseDouble(f[3]));
+                for (Trip trip : trips) {
+                    session.trip("T", trip);
+                }
+                session.status(true);
+                break;
+            }
+            case "HISTORY": {
+                List<Trip> trips = f.length == 5
+                    ? engine.pastTrips(f[1], f[2], new Date(Long.parseLong(f[3])), new Date(Long.parseLong(f[4])))
+                    : Collections.emptyList();
+                for (Trip trip : trips) {
+                    session.trip("A", trip);
+                }
+                session.status(true);
+                break;
+            }
+            case "SURGE":
+                if (f.length == 3) {
+                    session.out.write("S," + engine.surgeMultiplier(f[1], f[2]) + "\n");
+                }
+                session.status(f.length == 3);
+                break;
+            case "GET":
+                reply(session, f.length == 2 ? engine.getTrip(f[1]) : null);
+                break;
+            case "FULL": {
+                User host = f.length == 2 ? session.users.get(f[1]) : null;
+                reply(session, host == null ? null : engine.findFullTrip(host).orElse(null));
+                break;
+            }
+            case "HOSTED": {
+                User host = f.length == 2 ? session.users.get(f[1]) : null;
+                if (host != null) {
+                    for (Trip trip : engine.hostedTrips(host)) {
+                        session.trip("T", trip);
+                    }
+                }
+                session.status(host != null);
+                break;
+            }
+            case "BOOK": {
+                User user = f.length == 4 ? session.users.get(f[2]) : null;
+                boolean ok = user != null && engine.bookSeats(f[1], user, Integer.parseInt(f[3]));
+                reply(session, ok ? engine.getTrip(f[1]) : null);
+                break;
+            }
+            case "BULK": {
+                List<BulkBooking.Request> requests = new ArrayList<>();
+                for (int i = 1; i + 2 < f.length; i += 3) {
+                    requests.add(new BulkBooking.Request(f[i], session.users.get(f[i + 1]), Integer.parseInt(f[i + 2])));
+                }
+                List<BulkBooking.Outcome> outcomes = engine.bookAll(requests);
+                boolean ok = !outcomes.isEmpty();
+                for (BulkBooking.Outcome outcome : outcomes) {
+                    session.out.write("R," + outcome + "\n");
+                    ok &= outcome == BulkBooking.Outcome.BOOKED;
+                }
+                if (ok) {
+                    Set<String> sent = new HashSet<>();
+                    for (BulkBooking.Request request : requests) {
+                        Trip trip = engine.getTrip(request.tripId);
+                        if (trip != null && sent.add(trip.id)) {
+                            session.trip("T", trip);
+                        }
+                    }
+                }
+                session.status(ok);
+                break;
+            }
+            case "UNBOOK": {
+                User user = f.length == 3 ? session.users.get(f[2]) : null;
+                boolean ok = user != null && engine.cancelBooking(f[1], user);
+                reply(session, ok ? engine.getTrip(f[1]) : null);
+                break;
+            }
+            case "CANCEL": {
+                User host = f.length == 3 ? session.users.get(f[2]) : null;
+                session.status(host != null && engine.cancelTrip(f[1], host));
+                break;
+            }
+            case "START": {
+                Trip trip = f.length == 2 ? engine.getTrip(f[1]) : null;
+                boolean ok = trip != null && session.users.containsKey(trip.host.username) && engine.startRide(f[1]);
+                reply(session, ok ? trip : null);
+                break;
+            }
+            case "SYNC":
+                try {
+                    engine.sync().join();
+                    session.status(true);
+                } catch (CompletionException e) {
+                    session.out.write("ERR," + e.getCause() + "\n");
+                }
+                break;
+            default:
+                session.out.write("ERR,Unknown request " + f[0] + "\n");
+        }
+    }
+
+    private static void reply(Session session, Trip trip) throws IOException {
+        if (trip != null) {
+            session.trip("T", trip);
+        }
+        session.status(trip != null);
+    }
+
+    // Streams every change on the engine's feed to this connection. Changes are queued
+    // so that a slow client never holds up the thread that made the change; a client
+    // that falls WATCH_BACKLOG changes behind is disconnected and has to resubscribe.
+    // The client sends nothing more, so a second task reads until it hangs up and then
+    // wakes this thread, which would otherwise wait for the next change to find out.
+    private void watch(Socket socket, BufferedReader in, Session session) throws IOException {
+        BlockingQueue<TripChangeFeed.TripChange> queue = new LinkedBlockingQueue<>(WATCH_BACKLOG);
+        TripChangeFeed.Listener listener = change -> {
+            if (!queue.offer(change)) {
+                closeQuietly(socket);
+            }
+        };
+        engine.changes().addListener(listener);
+        Thread watcher = Thread.currentThread();
+        boolean[] done = {false};
+        connections.execute(() -> {
+            try {
+                while (in.read() >= 0) {
+                    // ignored
+                }
+            } catch (IOException e) {
+                // closed
+            }
+            closeQuietly(socket);
+            synchronized (done) {
+                if (!done[0]) {
+                    watcher.interrupt();
+                }
+            }
+        });
+        try {
+            session.status(true);
+            session.out.flush();
+            while (!socket.isClosed()) {
+                TripChangeFeed.TripChange change = queue.take();
+                do {
+                    session.trip("E," + change.type, change.trip);
+                } while ((change = queue.poll()) != null);
+                session.out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            engine.changes().removeListener(listener);
+            synchronized (done) {
+                done[0] = true;
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
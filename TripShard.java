@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One partition of the trip store. New trips go to the shard their (origin, destination)
+// hashes to, and each shard has its own snapshot, journal, journal writer thread,
+// compaction cadence and archive, so a burst of bookings on one route queues, fsyncs
+// and compacts without touching the files of routes in other shards, and shards load
+// in parallel.
+//
+// Shard 0 uses the unsharded file names (trips.txt, trips.journal, ...), so a store
+// written before sharding loads into it unchanged; shard n uses trips-n.txt and so on.
+// A trip stays in the shard it was loaded from for as long as it lives.
+class TripShard implements TripChangeFeed.Listener {
+    final int index;
+    final Map<String, Trip> trips = new ConcurrentHashMap<>();
+    final TripJournal journal;
+    final TripArchive archive;
+    final String journalFile;
+
+    TripShard(int index, Path directory, StoreLocks locks) {
+        this.index = index;
+        Path snapshot = directory.resolve(fileName(LocalRideMatchingEngine.BINARY_SNAPSHOT
+            ? LocalRideMatchingEngine.TRIP_SNAPSHOT_FILE : LocalRideMatchingEngine.TRIP_FILE, index));
+        Path csv = directory.resolve(fileName(LocalRideMatchingEngine.TRIP_FILE, index));
+        if (LocalRideMatchingEngine.BINARY_SNAPSHOT && !Files.exists(snapshot) && Files.exists(csv)) {
+            try {
+                TripSnapshotCodec.convert(csv, snapshot);
+            } catch (IOException e) {
+                Log.warn(() -> "Could not convert " + csv + " to a binary snapshot: " + e);
+            }
+        }
+        this.journalFile = fileName(LocalRideMatchingEngine.TRIP_JOURNAL_FILE, index);
+        this.journal = new TripJournal(snapshot, directory.resolve(journalFile),
+            TripJournal.SYNC_EVERY, TripJournal.COMPACT_EVERY, locks, index);
+        this.archive = new TripArchive(directory.resolve(fileName(LocalRideMatchingEngine.ARCHIVE_FILE, index)));
+    }
+
+    // "trips.txt" for shard 0, "trips-<n>.txt" for shard n.
+    static String fileName(String name, int index) {
+        if (index == 0) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        return name.substring(0, dot) + "-" + index + name.substring(dot);
+    }
+
+    // The number of shards in the directory: `configured`, or more if the store was
+    // written with more shards, so no shard's files are ever left unread.
+    static int count(Path directory, int configured) {
+        int count = Math.max(1, configured);
+        String prefix = LocalRideMatchingEngine.TRIP_JOURNAL_FILE;
+        prefix = prefix.substring(0, prefix.lastIndexOf('.')) + "-";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.toAbsolutePath(), "trips-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int dot = name.indexOf('.');
+                if (name.startsWith(prefix) && dot > prefix.length()) {
+                    try {
+                        count = Math.max(count, Integer.parseInt(name.substring(prefix.length(), dot)) + 1);
+                    } catch (NumberFormatException e) {
+                        // not a shard file
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // no directory yet; it will be created with `configured` shards
+        }
+        return count;
+    }
+
+    // The archive only follows this shard's own trips.
+    @Override
+    public void tripChanged(TripChangeFeed.TripChange change) {
+        if (change.type == TripChangeFeed.Type.REMOVED || trips.get(change.trip.id) == change.trip) {
+            archive.tripChanged(change);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+
+// Binary alternative to the trips.txt snapshot, read in one sequential pass.
+//
+//   int    magic "CABT"
+//   short  version
+//   int    dictionary size, then that many writeUTF strings (usernames and locations)
+//   int    trip count, then per trip:
+//            byte   id kind: 0 = UUID as two longs, 1 = writeUTF string
+//            int    host, origin, destination (dictionary indexes)
+//            long   departure, arrival (epoch millis)
+//            int    max passengers
+//            double price per passenger
+//            byte   started
+//            int    passenger count, then (int username, int seats) pairs
+//
+// Run as a program to convert an existing CSV snapshot:
+//   java TripSnapshotCodec trips.txt trips.bin
+class TripSnapshotCodec {
+    static final int MAGIC = 0x43414254; // "CABT"
+    static final short VERSION = 1;
+
+    private static final int BUFFER = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java TripSnapshotCodec <trips.txt> <trips.bin>");
+            System.exit(1);
+        }
+        int trips = convert(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.println("Converted " + trips + " trips: " + Files.size(Paths.get(args[0])) + " -> "
+            + Files.size(Paths.get(args[1])) + " bytes");
+    }
+
+    static boolean isBinary(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static void write(Collection<Trip> live, Path file) throws IOException {
+        // counts and the dictionary go in front, so pin down trips and passengers first
+        List<Trip> trips = new ArrayList<>(live);
+        List<List<Map.Entry<User, Integer>>> passengers = new ArrayList<>(trips.size());
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Trip trip : trips) {
+            dictionary.putIfAbsent(trip.host.username, dictionary.size());
+            dictionary.putIfAbsent(trip.origin, dictionary.size());
+            dictionary.putIfAbsent(trip.destination, dictionary.size());
+            List<Map.Entry<User, Integer>> seats = new ArrayList<>(trip.passengers.entrySet());
+            for (Map.Entry<User, Integer> entry : seats) {
+                dictionary.putIfAbsent(entry.getKey().username, dictionary.size());
+            }
+            passengers.add(seats);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel), BUFFER));
+            writeHeader(out, dictionary);
+            out.writeInt(trips.size());
+            for (int t = 0; t < trips.size(); t++) {
+                Trip trip = trips.get(t);
+                writeId(out, trip.id);
+                out.writeInt(dictionary.get(trip.host.username));
+                out.writeInt(dictionary.get(trip.origin));
+                out.writeInt(dictionary.get(trip.destination));
+                out.writeLong(trip.departureTime.getTime());
+                out.writeLong(trip.arrivalTime.getTime());
+                out.writeInt(trip.maxPassengers);
+                out.writeDouble(trip.pricePerPassenger);
+                out.writeBoolean(trip.isStarted);
+                out.writeInt(passengers.get(t).size());
+                for (Map.Entry<User, Integer> entry : passengers.get(t)) {
+                    out.writeInt(dictionary.get(entry.getKey().username));
+                    out.writeInt(entry.getValue());
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    static void read(Path file, Function<String, User> users, Map<String, Trip> tripMap) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a binary trip snapshot");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trip snapshot version " + version + " in " + file);
+            }
+            String[] dictionary = new String[in.readInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = in.readUTF();
+            }
+            // usernames resolve to the same User every time, so look each one up once
+            User[] resolved = new User[dictionary.length];
+            boolean[] looked = new boolean[dictionary.length];
+
+            int count = in.readInt();
+            for (int t = 0; t < count; t++) {
+                String id = readId(in);
+                int host = in.readInt();
+                String origin = dictionary[in.readInt()];
+                String destination = dictionary[in.readInt()];
+                long departure = in.readLong();
+                long arrival = in.readLong();
+                int maxPassengers = in.readInt();
+                double price = in.readDouble();
+                boolean started = in.readBoolean();
+                int passengers = in.readInt();
+
+                User hostUser = resolve(host, dictionary, resolved, looked, users);
+                Trip trip = hostUser == null ? null : new Trip(id, hostUser, origin, destination,
+                    new Date(departure), new Date(arrival), maxPassengers, price);
+                for (int p = 0; p < passengers; p++) {
+                    User passenger = resolve(in.readInt(), dictionary, resolved, looked, users);
+                    int seats = in.readInt();
+                    if (trip != null && passenger != null) {
+                        trip.setSeats(passenger, seats);
+                    }
+                }
+                if (trip != null) {
+                    trip.isStarted = started;
+                    tripMap.put(trip.id, trip);
+                }
+            }
+        }
+    }
+
+    // Converts a CSV snapshot in two streaming passes: the first collects the
+    // dictionary and counts trips, the second writes them. Returns the trip count.
+    static int convert(Path csv, Path binary) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int count = 0;
+        try (FileChannel in = FileChannel.open(csv, StandardOpenOption.READ)) {
+            CsvRecordReader line = CsvRecordReader.open(in);
+            while (line.next()) {
+                if (line.fields() < 9) continue;
+                count++;
+                for (int i = 1; i <= 3; i++) {
+                    dictionary.putIfAbsent(line.intern(i), dictionary.size());
+                }
+                for (int i = 9; i + 1 < line.fields(); i += 2) {
+                    dictionary.putIfAbsent(line.intern(i), dictionary.size());
+                }
+            }
+        }
+        try (FileChannel in = FileChannel.open(csv, StandardOpenOption.READ);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(binary), BUFFER))) {
+            writeHeader(out, dictionary);
+            out.writeInt(count);
+            CsvRecordReader line = CsvRecordReader.open(in);
+            while (line.next()) {
+                if (line.fields() < 9) continue;
+                writeId(out, line.string(0));
+                out.writeInt(dictionary.get(line.intern(1)));
+                out.writeInt(dictionary.get(line.intern(2)));
+                out.writeInt(dictionary.get(line.intern(3)));
+                out.writeLong(line.parseLong(4));
+                out.writeLong(line.parseLong(5));
+                out.writeInt(line.parseInt(6));
+                out.writeDouble(line.parseDouble(7));
+                out.writeBoolean(line.parseBoolean(8));
+                out.writeInt((line.fields() - 9) / 2);
+                for (int i = 9; i + 1 < line.fields(); i += 2) {
+                    out.writeInt(dictionary.get(line.intern(i)));
+                    out.writeInt(line.parseInt(i + 1));
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void writeHeader(DataOutputStream out, Map<String, Integer> dictionary) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(dictionary.size());
+        for (String value : dictionary.keySet()) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void writeId(DataOutputStream out, String id) throws IOException {
+        UUID uuid = null;
+        try {
+            uuid = UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            // not a UUID; stored as text below
+        }
+        if (uuid != null && uuid.toString().equals(id)) {
+            out.writeByte(0);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(1);
+            out.writeUTF(id);
+        }
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        if (kind == 0) {
+            return new UUID(in.readLong(), in.readLong()).toString();
+        }
+        return in.readUTF();
+    }
+
+    private static User resolve(int index, String[] dictionary, User[] resolved, boolean[] looked, Function<String, User> users) {
+        if (!looked[index]) {
+            resolved[index] = users.apply(dictionary[index]);
+            looked[index] = true;
+        }
+        return resolved[index];
+    }
+}
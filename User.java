@@ -0,0 +1,32 @@
+class User {
+    String name;
+    String username;
+    String password;
+    String role;
+    String phone;
+
+    public User(String name, String username, String password, String role, String phone) {
+        this.name = name;
+        this.username = username;
+        this.password = password;
+        this.role = role;
+        this.phone = phone;
+    }
+
+    // Users are identified by username: copies loaded from disk or received from a
+    // server are the same user, including as keys of Trip.passengers.
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof User && username.equals(((User) o).username);
+    }
+
+    @Override
+    public int hashCode() {
+        return username.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + phone + ")";
+    }
+}
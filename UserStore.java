@@ -0,0 +1,500 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// The users of one store directory, looked up one at a time instead of all being
+// loaded at startup.
+//
+// users.txt is append-only: a sign-up adds one line, and a user saved again (a password
+// upgraded to a hash) gets a new line that supersedes the old one. users.idx is a hash
+// table over it, memory-mapped and shared by every process using the directory: each
+// slot holds the hash of a username and the offset of that user's latest line, with
+// linear probing. A lookup reads a slot or two and then one line, and an LRU cache of
+// CACHE_SIZE users in front of it makes repeat lookups (logins, trips resolving their
+// hosts and passengers) a map hit. Neither opening the store nor a sign-up reads the
+// other users.
+//
+// Writers hold the users lock (StoreLocks byte 1). They append the line before filling
+// its slot, so a reader never finds a slot whose line is not there yet, and then record
+// how far users.txt is indexed; lines past that point (from a writer that died, or from
+// before the index existed) are indexed by the next writer. A table that is half full
+// is rebuilt at twice the size and renamed over users.idx, and the old file is marked
+// stale so that other processes map the new one.
+//
+// Passwords are stored as salted PBKDF2 hashes, "pbkdf2$<iterations>$<salt>$<hash>".
+// Plain-text passwords written before hashing still log in and are hashed at that login.
+class UserStore implements Closeable {
+    static final String INDEX_SUFFIX = ".idx";
+    static final int CACHE_SIZE = Integer.getInteger("cab.users.cacheSize", 10_000);
+    static final int HASH_ITERATIONS = Integer.getInteger("cab.users.hashIterations", 10_000);
+
+    private static final String PBKDF2 = "pbkdf2$";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // users.idx: a header, then `capacity` slots of (offset + 1, hash); offset 0 is empty
+    private static final int MAGIC = 0x55494458;
+    private static final int CAPACITY_AT = 4;
+    private static final int COUNT_AT = 8;
+    private static final int STALE_AT = 12;
+    private static final int INDEXED_AT = 16;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+    private static final int MIN_CAPACITY = 1024;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path file;
+    private final Path indexFile;
+    private final StoreLocks locks;
+    private final FileChannel lines;
+    private final Map<String, User> pending = new ConcurrentHashMap<>();
+    // Reserved users save() found taken by another process, until saved() is asked
+    private final Set<User> dropped = ConcurrentHashMap.newKeySet();
+    private final Map<String, User> cache = Collections.synchronizedMap(new LinkedHashMap<String, User>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+    private volatile Index index;
+
+    // One mapping of users.idx. Slots are published with release stores and read with
+    // acquire loads, which order them against the line written before them.
+    private static final class Index {
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int capacity;
+
+        Index(FileChannel channel, int capacity) throws IOException {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+        }
+
+        long offset(int slot) {
+            return (long) LONGS.getAcquire(map, HEADER + slot * SLOT) - 1;
+        }
+
+        int hash(int slot) {
+            return map.getInt(HEADER + slot * SLOT + 8);
+        }
+
+        void put(int slot, int hash, long offset) {
+            map.putInt(HEADER + slot * SLOT + 8, hash);
+            LONGS.setRelease(map, HEADER + slot * SLOT, offset + 1);
+        }
+
+        int count() {
+            return map.getInt(COUNT_AT);
+        }
+
+        long indexed() {
+            return (long) LONGS.getAcquire(map, INDEXED_AT);
+        }
+
+        boolean stale() {
+            return (int) INTS.getVolatile(map, STALE_AT) != 0;
+        }
+    }
+
+    UserStore(Path file, StoreLocks locks) throws IOException {
+        this.file = file;
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.indexFile = file.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + INDEX_SUFFIX);
+        this.locks = locks;
+        this.lines = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long start = System.nanoTime();
+        locked(() -> {
+            update();
+            return null;
+        });
+        Log.info(() -> String.format("Opened users: %d indexed in %.1f ms", index.count(), (System.nanoTime() - start) / 1e6));
+    }
+
+    // The user, or null if there is none. I/O errors count as not found.
+    User get(String username) {
+        User user = cache.get(username);
+        if (user != null) {
+            return user;
+        }
+        user = pending.get(username);
+        if (user != null) {
+            return user;
+        }
+        try {
+            user = find(current(), username);
+        } catch (IOException e) {
+            Log.warn(() -> "Cannot read " + file + ": " + e);
+            return null;
+        }
+        if (user != null) {
+            cache.put(username, user);
+        }
+        return user;
+    }
+
+    // The user if the password is theirs, otherwise null.
+    User login(String username, String password) {
+        User user = get(username);
+        if (user == null || password == null || !matches(password, user.password)) {
+            return null;
+        }
+        if (!user.password.startsWith(PBKDF2)) {
+            User hashed = new User(user.name, user.username, hash(password), user.role, user.phone);
+            try {
+                locked(() -> {
+                    append(Collections.singletonList(hashed));
+                    lines.force(false);
+                    return null;
+                });
+                cache.put(username, hashed);
+                user = hashed;
+            } catch (IOException e) {
+                Log.warn(() -> "Cannot save the hashed password of " + username + ": " + e);
+            }
+        }
+        return user;
+    }
+
+    // Reserves the username for a new user, whose password must already be hashed;
+    // false if it is taken. The user is visible to get() at once and written by save();
+    // another process may still take the name first, which saved() tells afterwards.
+    boolean add(User user) {
+        return isValidField(user.name) && isValidField(user.username) && isValidField(user.role)
+            && isValidField(user.phone) && get(user.username) == null && pending.putIfAbsent(user.username, user) == null;
+    }
+
+    // Appends users reserved with add() to users.txt in one write. A username another
+    // process saved in the meantime keeps that process's user, and saved() turns false
+    // for ours.
+    void save(List<User> batch) throws IOException {
+        List<User> users = new ArrayList<>();
+        for (User user : batch) {
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        if (users.isEmpty()) {
+            return;
+        }
+        try {
+            locked(() -> {
+                update();
+                List<User> fresh = new ArrayList<>();
+                for (User user : users) {
+                    if (find(index, user.username) == null) {
+                        fresh.add(user);
+                    } else {
+                        dropped.add(user);
+                        Log.warn(() -> "Username " + user.username + " was taken by another process; sign-up dropped");
+                    }
+                }
+                append(fresh);
+                lines.force(false);
+                for (User user : fresh) {
+                    cache.put(user.username, user);
+                }
+                return null;
+            });
+        } finally {
+            for (User user : users) {
+                pending.remove(user.username, user);
+            }
+        }
+    }
+
+    // Once save() has run for a user reserved with add(): whether it was written, rather
+    // than dropped because another process took the name first.
+    boolean saved(User user) {
+        return !dropped.remove(user);
+    }
+
+    // Whether a name, username, role or phone number can be stored: not blank, and
+    // without a ',' or a line break, which would split its line in users.txt.
+    static boolean isValidField(String value) {
+        return value != null && !value.trim().isEmpty()
+            && value.indexOf(',') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    static String hash(String password) {
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PBKDF2 + HASH_ITERATIONS + "$" + base64.encodeToString(salt)
+            + "$" + base64.encodeToString(pbkdf2(password, salt, HASH_ITERATIONS));
+    }
+
+    // Whether the password matches the stored hash, or the stored plain text.
+    static boolean matches(String password, String stored) {
+        if (!stored.startsWith(PBKDF2)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, Base64.getDecoder().decode(parts[2]),
+                Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lines.close();
+        index.channel.close();
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 unavailable", e);
+        }
+    }
+
+    private <T> T locked(StoreLocks.Action<T> action) throws IOException {
+        synchronized (this) {
+            return locks == null ? action.run() : locks.withUsers(action);
+        }
+    }
+
+    // The latest users.idx, mapped again if another process has replaced it.
+    private Index current() {
+        if (index.stale()) {
+            try {
+                locked(() -> {
+                    update();
+                    return null;
+                });
+            } catch (IOException e) {
+                Log.warn(() -> "Cannot reopen " + indexFile + ": " + e);
+            }
+        }
+        return index;
+    }
+
+    private User find(Index index, String username) throws IOException {
+        int hash = slotHash(username);
+        int mask = index.capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long offset = index.offset(slot);
+            if (offset < 0) {
+                return null;
+            }
+            if (index.hash(slot) == hash) {
+                User user = read(offset);
+                if (user != null && user.username.equals(username)) {
+                    return user;
+                }
+            }
+        }
+    }
+
+    // The user on the line starting at offset, or null if the line is malformed.
+    private User read(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        while (true) {
+            buffer.clear();
+            int length = 0;
+            for (int n; length < buffer.capacity() && (n = lines.read(buffer, offset + length)) > 0; ) {
+                length += n;
+            }
+            boolean whole = length < buffer.capacity();
+            for (int i = 0; i < length && !whole; i++) {
+                whole = buffer.get(i) == '\n' && i > 0 && buffer.get(i - 1) != '\n';
+            }
+            if (!whole) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                continue;
+            }
+            buffer.flip();
+            CsvRecordReader line = new CsvRecordReader(buffer, offset, false);
+            return line.next() && line.fields() == 5
+                ? new User(line.string(0), line.string(1), line.string(2), line.intern(3), line.string(4))
+                : null;
+        }
+    }
+
+    // Brings the index up to date: maps users.idx again if another process replaced it,
+    // builds it if it is missing or does not fit users.txt, and indexes lines appended
+    // since. Called holding the users lock.
+    private void update() throws IOException {
+        Index old = index;
+        if (old == null || old.stale()) {
+            Index mapped = map();
+            if (mapped == null) {
+                publish(create(MIN_CAPACITY));
+            } else {
+                index = mapped;
+                if (old != null) {
+                    old.channel.close();
+                }
+            }
+        }
+        catchUp();
+    }
+
+    // The table in users.idx, or null if there is none that fits users.txt.
+    private Index map() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        channel.read(header, 0);
+        int capacity = header.getInt(CAPACITY_AT);
+        if (size >= HEADER && header.getInt(0) == MAGIC && capacity >= MIN_CAPACITY
+                && Integer.bitCount(capacity) == 1 && size == HEADER + (long) capacity * SLOT
+                && header.getInt(STALE_AT) == 0 && header.getLong(INDEXED_AT) <= lines.size()) {
+            return new Index(channel, capacity);
+        }
+        channel.close();
+        Log.warn(() -> indexFile + " does not match " + file + "; rebuilding it");
+        return null;
+    }
+
+    // Indexes lines appended past the indexed length. Called holding the users lock.
+    private void catchUp() throws IOException {
+        long from = index.indexed();
+        if (from >= lines.size()) {
+            return;
+        }
+        CsvRecordReader line = new CsvRecordReader(lines, from, true);
+        long start = line.position();
+        while (line.next()) {
+            if (line.fields() == 5) {
+                insert(line.string(1), start);
+            }
+            start = line.position();
+        }
+        LONGS.setRelease(index.map, INDEXED_AT, start);
+    }
+
+    // Appends the users' lines and indexes them. Called holding the users lock.
+    private Void append(List<User> users) throws IOException {
+        update();
+        if (users.isEmpty()) {
+            return null;
+        }
+        long end = lines.size();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        if (end > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            lines.read(last, end - 1);
+            if (last.get(0) != '\n') {
+                text.write('\n');
+            }
+        }
+        long[] offsets = new long[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            offsets[i] = end + text.size();
+            text.write((String.join(",", user.name, user.username, user.password, user.role, user.phone) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(text.toByteArray());
+        for (long at = end; bytes.hasRemaining(); ) {
+            at += lines.write(bytes, at);
+        }
+        for (int i = 0; i < users.size(); i++) {
+            insert(users.get(i).username, offsets[i]);
+        }
+        LONGS.setRelease(index.map, INDEXED_AT, end + bytes.limit());
+        return null;
+    }
+
+    // Points the username's slot at the line, adding a slot if the username has none.
+    private void insert(String username, long offset) throws IOException {
+        if ((index.count() + 1) * 2L > index.capacity) {
+            grow();
+        }
+        int hash = slotHash(username);
+        int mask = index.capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long existing = index.offset(slot);
+            if (existing < 0) {
+                index.put(slot, hash, offset);
+                index.map.putInt(COUNT_AT, index.count() + 1);
+                return;
+            }
+            if (index.hash(slot) == hash) {
+                User user = read(existing);
+                if (user == null || user.username.equals(username)) {
+                    index.put(slot, hash, offset);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Rebuilds the table at twice the size from the stored hashes, without reading users.txt.
+    private void grow() throws IOException {
+        Index old = index;
+        Index fresh = create(old.capacity * 2);
+        int mask = fresh.capacity - 1;
+        for (int i = 0; i < old.capacity; i++) {
+            long offset = old.offset(i);
+            if (offset >= 0) {
+                int hash = old.hash(i);
+                int slot = hash & mask;
+                while (fresh.offset(slot) >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                fresh.put(slot, hash, offset);
+            }
+        }
+        fresh.map.putInt(COUNT_AT, old.count());
+        LONGS.setRelease(fresh.map, INDEXED_AT, old.indexed());
+        publish(fresh);
+    }
+
+    // An empty table in users.idx.tmp, to be filled and then published.
+    private Index create(int capacity) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        Index fresh = new Index(FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+            StandardOpenOption.WRITE), capacity);
+        fresh.map.putInt(0, MAGIC);
+        fresh.map.putInt(CAPACITY_AT, capacity);
+        return fresh;
+    }
+
+    // Renames the new table over users.idx, then marks the old one stale for the
+    // processes still mapping it.
+    private void publish(Index fresh) throws IOException {
+        fresh.map.force();
+        Files.move(indexFile.resolveSibling(indexFile.getFileName() + ".tmp"), indexFile,
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Index old = index;
+        index = fresh;
+        if (old != null) {
+            INTS.setVolatile(old.map, STALE_AT, 1);
+            old.channel.close();
+        }
+    }
+
+    private static int slotHash(String username) {
+        int h = username.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+// Bounded hand-off between threads that change state and a single background thread
+// that persists it. Everything queued while the writer is busy is handed to the flusher
+// as one batch, so a burst of bookings costs one write and one fsync. Each submit()
+// returns a future that completes once its batch has been flushed, or exceptionally if
+// the flush failed. When the queue is full, submit() blocks until the writer catches up.
+// After close(), and for a submit() racing it that misses the last batch, the future
+// fails instead.
+class WriteBehindQueue<T> {
+    interface Flusher<T> {
+        // Items may include nulls, which are sync markers carrying no data.
+        void flush(List<T> batch) throws IOException;
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    private final BlockingQueue<Entry<T>> queue;
+    private final Flusher<T> flusher;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // Set by the writer once it has stopped taking entries
+    private volatile boolean stopped = false;
+
+    WriteBehindQueue(String name, int capacity, Flusher<T> flusher) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flusher = flusher;
+        this.writer = new Thread(this::run, name + "-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    CompletableFuture<Void> submit(T item) {
+        Entry<T> entry = new Entry<>(item);
+        if (closed) {
+            entry.done.completeExceptionally(new IllegalStateException("Write-behind queue is closed"));
+            return entry.done;
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            entry.done.completeExceptionally(e);
+        }
+        // Raced close(): the writer may have gone before this entry was queued
+        if (stopped) {
+            failLeftovers();
+        }
+        return entry.done;
+    }
+
+    // Completes once everything submitted before this call has been flushed.
+    CompletableFuture<Void> sync() {
+        return submit(null);
+    }
+
+    // Flushes what is queued and stops the writer.
+    void close() {
+        if (closed) {
+            return;
+        }
+        CompletableFuture<Void> last = sync();
+        closed = true;
+        last.join();
+        writer.interrupt();
+    }
+
+    private void run() {
+        List<Entry<T>> batch = new ArrayList<>();
+        List<T> items = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+            for (Entry<T> entry : batch) {
+                items.add(entry.item);
+            }
+            try {
+                flusher.flush(items);
+                for (Entry<T> entry : batch) {
+                    entry.done.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.warn(() -> writer.getName() + " could not write a batch: " + e);
+                for (Entry<T> entry : batch) {
+                    entry.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+            items.clear();
+        }
+        stopped = true;
+        failLeftovers();
+    }
+
+    private void failLeftovers() {
+        List<Entry<T>> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        for (Entry<T> entry : leftovers) {
+            entry.done.completeExceptionally(new IllegalStateException("Write-behind queue is closed"));
+        }
+    }
+}